@@ -1,16 +1,47 @@
 package jp.dip.oyasirazu.domelementsorter;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
+import javax.xml.XMLConstants;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
@@ -23,11 +54,19 @@ import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
 
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
 import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
 /**
@@ -71,6 +110,14 @@ public final class DOMElementSorter {
         }
     };
 
+    /**
+     * 並列ソートを行う兄弟ノード数の閾値。
+     *
+     * 子ノード数がこの値以上の場合、
+     * ソートキーを配列に抽出してから Arrays.parallelSort でソートする。
+     */
+    public static final int PARALLEL_SORT_THRESHOLD = 10000;
+
     /**
      * constructor.
      */
@@ -105,6 +152,24 @@ public final class DOMElementSorter {
     public static void sort(final Document document,
             final List<String> useValues,
             final String excludeXPath) throws XPathExpressionException {
+        sort(document, useValues, excludeXPath, null);
+    }
+
+    /**
+     * 指定された Document を、進捗を報告しながら再帰的にソートする。
+     *
+     * @param document ソート対象 Document
+     * @param useValues ソートに使用するノードを表す XPath 式のリスト
+     *                  index が小さければ小さいほどソートの優先順位が高い。
+     * @param excludeXPath 出力対象外ノードを表す XPath 式
+     * @param progress 進捗報告・中断用オブジェクト(null の場合は報告しない)
+     * @throws XPathExpressionException XPath 処理失敗時
+     * @throws SortCancelledException 中断またはタイムアウト時
+     */
+    public static void sort(final Document document,
+            final List<String> useValues,
+            final String excludeXPath,
+            final SortProgress progress) throws XPathExpressionException {
 
         // useValues を使用して NodeComparatorXPath を作る。
         NodeComparator nc = null;
@@ -125,7 +190,8 @@ public final class DOMElementSorter {
 
         sort(document, true, SORT_CONDITION_DEFAULT,
                 nc,
-                EXCLUDE_TARGET_CONDITION_DEFAULT);
+                EXCLUDE_TARGET_CONDITION_DEFAULT,
+                progress);
     }
 
     /**
@@ -161,6 +227,66 @@ public final class DOMElementSorter {
             final Comparator<Node> comparator,
             final ExcludeTargetCondition excludeTargetCondition) {
 
+        sort(node, isRecursion, sortTargetCondition,
+                comparator, excludeTargetCondition, null);
+    }
+
+    /**
+     * 指定された Node の要素を、進捗を報告しながら再帰的にソートする。
+     *
+     * progress の中断要求はノードを訪れるたびに確認し、
+     * 中断された場合は SortCancelledException を投げる。
+     * その時点で並べ替え済みの兄弟ノードはそのまま残る。
+     *
+     * @param node ソート対象 Node
+     * @param isRecursion 再帰フラグ
+     *        (true:再帰的にソートする, false:再帰的にソートしない)
+     * @param  sortTargetCondition ソート対象ノード判定クラス
+     * @param comparator ソートのための比較クラス
+     * @param excludeTargetCondition 出力対象ノード判定クラス
+     * @param progress 進捗報告・中断用オブジェクト(null の場合は報告しない)
+     * @throws SortCancelledException 中断またはタイムアウト時
+     */
+    public static void sort(final Node node,
+            final boolean isRecursion,
+            final SortTargetCondition sortTargetCondition,
+            final Comparator<Node> comparator,
+            final ExcludeTargetCondition excludeTargetCondition,
+            final SortProgress progress) {
+
+        SortPhaseEvent event = SortPhaseEvent.begin(
+                SortPhaseEvent.PHASE_SORT, node);
+        try {
+            sortNode(node, isRecursion, sortTargetCondition,
+                    comparator, excludeTargetCondition, progress);
+        } finally {
+            event.commit();
+        }
+    }
+
+    /**
+     * 指定された Node の要素を再帰的にソートする。
+     *
+     * @param node ソート対象 Node
+     * @param isRecursion 再帰フラグ
+     *        (true:再帰的にソートする, false:再帰的にソートしない)
+     * @param  sortTargetCondition ソート対象ノード判定クラス
+     * @param comparator ソートのための比較クラス
+     * @param excludeTargetCondition 出力対象ノード判定クラス
+     * @param progress 進捗報告・中断用オブジェクト(null の場合は報告しない)
+     * @throws SortCancelledException 中断またはタイムアウト時
+     */
+    private static void sortNode(final Node node,
+            final boolean isRecursion,
+            final SortTargetCondition sortTargetCondition,
+            final Comparator<Node> comparator,
+            final ExcludeTargetCondition excludeTargetCondition,
+            final SortProgress progress) {
+
+        if (progress != null) {
+            progress.nodeVisited();
+        }
+
         // 子ノード情報取得
         NodeList nodes = node.getChildNodes();
         int size = nodes.getLength();
@@ -169,8 +295,8 @@ public final class DOMElementSorter {
         // 再帰フラグが立って入れば、再帰する
         if (!excludeTargetCondition.isExcludeTarget(node) && isRecursion) {
             for (int i = 0; i < size; i++) {
-                sort(nodes.item(i), isRecursion, sortTargetCondition,
-                        comparator, excludeTargetCondition);
+                sortNode(nodes.item(i), isRecursion, sortTargetCondition,
+                        comparator, excludeTargetCondition, progress);
             }
         }
 
@@ -185,9 +311,28 @@ public final class DOMElementSorter {
             nodeList.add(nodes.item(i));
         }
 
+        // 兄弟ノードが多い場合は JFR イベントを記録する
+        SiblingListSortEvent event = null;
+        if (size >= SiblingListSortEvent.THRESHOLD) {
+            event = new SiblingListSortEvent();
+            event.begin();
+        }
+
         // ArrayList<Node> をソートし、
         // append し直すことで子ノードのソートを行う
-        Collections.sort(nodeList, comparator);
+        // 兄弟ノードが大量にある場合は並列ソートを利用する
+        // JFR イベントを記録しない場合は時刻を取得しない
+        long comparatorStart = event != null ? System.nanoTime() : 0L;
+        boolean parallel = size >= PARALLEL_SORT_THRESHOLD
+                && LargeSiblingListSorter.isSupported(comparator);
+        if (parallel) {
+            nodeList = LargeSiblingListSorter.sort(nodeList, comparator,
+                    ParserProfile.isExpanded(node), progress);
+        } else {
+            Collections.sort(nodeList, comparator);
+        }
+        long comparatorTime = event != null
+                ? System.nanoTime() - comparatorStart : 0L;
         Document document;
         if (node.getNodeType() == Node.DOCUMENT_NODE) {
             document = (Document)node;
@@ -208,6 +353,23 @@ public final class DOMElementSorter {
                 }
             }
         }
+
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.parentPath = SiblingListSortEvent.pathOf(node);
+                event.childCount = size;
+                event.comparatorTime = comparatorTime;
+                event.parallel = parallel;
+                event.sortValues = SiblingListSortEvent.describe(comparator);
+                event.commit();
+            }
+        }
+
+        // 兄弟のいない子ノードは並べ替えていないので数えない
+        if (progress != null && size > 1) {
+            progress.siblingListCompleted();
+        }
     }
 
     /**
@@ -257,6 +419,11 @@ public final class DOMElementSorter {
          */
         private List<XPathExpression> xPathExpressions;
 
+        /**
+         * ソートに使用する値を探すための XPath 式文字列リスト。
+         */
+        private List<String> useValues;
+
         /**
         * コンストラクタ。
         *
@@ -267,15 +434,42 @@ public final class DOMElementSorter {
         public NodeComparatorXPath(final List<String> useValues)
                 throws XPathExpressionException {
 
+            this.useValues = new ArrayList<String>(useValues);
+            xPathExpressions = compileExpressions();
+        }
+
+        /**
+         * ソートに使用する値を探すための XPath 式文字列リストを返却する。
+         *
+         * @return XPath 式文字列リスト(変更不可)
+         */
+        List<String> getUseValues() {
+            return Collections.unmodifiableList(useValues);
+        }
+
+        /**
+         * XPath 式リストをコンパイルする。
+         *
+         * XPathExpression はスレッドセーフではないため、
+         * 複数スレッドで評価する場合はスレッドごとにコンパイルしたものを使用する。
+         *
+         * @return コンパイル済み XPath 式リスト
+         * @throws XPathExpressionException XPath 式 の作成に失敗した場合。
+         */
+        List<XPathExpression> compileExpressions()
+                throws XPathExpressionException {
+
             XPathFactory xpathfactory = XPathFactory.newInstance();
             XPath xpath = xpathfactory.newXPath();
 
-            xPathExpressions = new ArrayList<XPathExpression>();
+            List<XPathExpression> expressions =
+                    new ArrayList<XPathExpression>();
 
             for (String xPathStr : useValues) {
                 XPathExpression expression = xpath.compile(xPathStr);
-                xPathExpressions.add(expression);
+                expressions.add(expression);
             }
+            return expressions;
         }
 
         @Override
@@ -325,92 +519,1843 @@ public final class DOMElementSorter {
             return 0;
         }
     };
+
     /**
-     * DOM ツリーを作るのに便利な機能を実装したユーティリティクラス。
+     * ソートの進捗報告と中断を行うためのクラス。
+     *
+     * パース済みバイト数、訪問済みノード数、ソート済み兄弟リスト数を集計する。
+     * 中断要求とタイムアウトはソート処理から協調的に確認され、
+     * 検出時には SortCancelledException が投げられる。
+     * 各メソッドは任意のスレッドから呼び出せる。
      */
-    public static final class Util {
+    public static final class SortProgress {
 
         /**
-         * constructor.
+         * パース済みバイト数。
          */
-        private Util() { }
+        private final AtomicLong parsedBytes = new AtomicLong();
 
         /**
-         * 指定されたファイルから Document を作成する。
+         * 訪問済みノード数。
+         */
+        private final AtomicLong nodesVisited = new AtomicLong();
+
+        /**
+         * ソート済み兄弟リスト数。
+         */
+        private final AtomicLong siblingListsCompleted = new AtomicLong();
+
+        /**
+         * タイムアウト時刻(System.nanoTime 基準)。
+         */
+        private final long deadline;
+
+        /**
+         * タイムアウトが設定されているか。
+         */
+        private final boolean hasDeadline;
+
+        /**
+         * 中断要求フラグ。
+         */
+        private volatile boolean cancelled;
+
+        /**
+         * コンストラクタ。タイムアウトなし。
+         */
+        public SortProgress() {
+            this(0);
+        }
+
+        /**
+         * コンストラクタ。
          *
-         * @param filePath XML ファイルのパス
-         * @return Document インスタンス
-         * @throws SAXException SAX の一般的なエラーまたは警告発生時
-         * @throws ParserConfigurationException
-         *              パーサーの重大な構成エラー発生時
-         * @throws IOException なんらかの入出力例外の発生時
+         * @param timeoutMillis 作成時からのタイムアウト(ミリ秒)。
+         *                      0 以下の場合はタイムアウトなし。
          */
-        public static Document createDocument(final String filePath)
-                throws SAXException, IOException,
-                       ParserConfigurationException {
+        public SortProgress(final long timeoutMillis) {
+            this.hasDeadline = timeoutMillis > 0;
+            this.deadline = System.nanoTime()
+                    + TimeUnit.MILLISECONDS.toNanos(Math.max(timeoutMillis, 0));
+        }
 
-            DocumentBuilderFactory factory =
-                    DocumentBuilderFactory.newInstance();
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            return builder.parse(Paths.get(filePath).toFile());
+        /**
+         * 処理の中断を要求する。
+         */
+        public void cancel() {
+            cancelled = true;
         }
 
         /**
-         * Document から XML 文字列を作成する。
+         * 中断要求済み、またはタイムアウト済みかを返却する。
          *
-         * @param document Document インスタンス
-         * @return XML 文字列
-         * @throws TransformerException 変換処理例外発生時
+         * @return 判定結果(true:中断する, false:継続する)
          */
-        public static String documentToString(final Document document)
-                throws TransformerException {
+        public boolean isCancelled() {
+            if (!cancelled && hasDeadline
+                    && System.nanoTime() - deadline >= 0) {
+                cancelled = true;
+            }
+            return cancelled;
+        }
 
-            StringWriter sw = new StringWriter();
-            TransformerFactory tfactory = TransformerFactory.newInstance();
-            Transformer transformer =
-                tfactory.newTransformer(new StreamSource(
-                    DOMElementSorter.class.getResourceAsStream("/style.xsl")));
+        /**
+         * 中断要求済み、またはタイムアウト済みであれば例外を投げる。
+         *
+         * @throws SortCancelledException 中断またはタイムアウト時
+         */
+        public void checkCancelled() {
+            if (isCancelled()) {
+                throw new SortCancelledException(this);
+            }
+        }
 
-            transformer.transform(
-                    new DOMSource(document), new StreamResult(sw));
+        /**
+         * パース済みバイト数を返却する。
+         *
+         * @return パース済みバイト数
+         */
+        public long getParsedBytes() {
+            return parsedBytes.get();
+        }
 
-            // Java11 にバージョンアップしたら、空白文字だけの行が発生してしまったため、
-            // 暫定対応として正規表現で空白文字だけの行を削除。
-            return sw.toString().replaceAll("\r\n", "\n").replaceAll("(?m)^\\s*\n", "");
+        /**
+         * 訪問済みノード数を返却する。
+         *
+         * @return 訪問済みノード数
+         */
+        public long getNodesVisited() {
+            return nodesVisited.get();
         }
 
         /**
-         * Document から XPath 式で指定したノードを削除する。
+         * ソート済み兄弟リスト数を返却する。
          *
-         * @param document Document インスタンス
-         * @param excludeXPath 削除するノードの XPath 式
-         * @throws XPathExpressionException XPath 処理失敗時
+         * @return ソート済み兄弟リスト数
          */
-        public static void removeNodes(
-                final Document document,
-                final String excludeXPath) throws XPathExpressionException {
-            XPathFactory xpathfactory = XPathFactory.newInstance();
-            XPath xpath = xpathfactory.newXPath();
+        public long getSiblingListsCompleted() {
+            return siblingListsCompleted.get();
+        }
+
+        /**
+         * 入力ストリームを、読み込んだバイト数を集計するストリームでラップする。
+         *
+         * 読み込みのたびに中断要求を確認する。
+         *
+         * @param inputStream ラップする入力ストリーム
+         * @return 集計用入力ストリーム
+         */
+        public InputStream monitor(final InputStream inputStream) {
+            return new FilterInputStream(inputStream) {
+                @Override
+                public int read() throws IOException {
+                    checkCancelled();
+                    int b = super.read();
+                    if (b >= 0) {
+                        parsedBytes.incrementAndGet();
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(final byte[] b, final int off, final int len)
+                        throws IOException {
+                    checkCancelled();
+                    int n = super.read(b, off, len);
+                    if (n > 0) {
+                        parsedBytes.addAndGet(n);
+                    }
+                    return n;
+                }
+            };
+        }
+
+        /**
+         * ノードの訪問を記録し、中断要求を確認する。
+         *
+         * @throws SortCancelledException 中断またはタイムアウト時
+         */
+        void nodeVisited() {
+            nodesVisited.incrementAndGet();
+            checkCancelled();
+        }
+
+        /**
+         * 兄弟リストのソート完了を記録する。
+         */
+        void siblingListCompleted() {
+            siblingListsCompleted.incrementAndGet();
+        }
+
+        @Override
+        public String toString() {
+            return "parsed bytes: " + getParsedBytes()
+                    + ", nodes visited: " + getNodesVisited()
+                    + ", sibling lists completed: "
+                    + getSiblingListsCompleted();
+        }
+    }
+
+    /**
+     * ソートが中断またはタイムアウトしたことを表す例外。
+     */
+    public static class SortCancelledException extends RuntimeException {
+
+        /**
+         * serialVersionUID.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * コンストラクタ。
+         *
+         * @param progress 中断時の進捗
+         */
+        public SortCancelledException(final SortProgress progress) {
+            super("sort cancelled (" + progress + ")");
+        }
+    }
+
+    /**
+     * 処理フェーズ(parse, removeNodes, sort, serialize)ごとの JFR イベント。
+     *
+     * JFR の記録が無効な場合、イベントはほぼコストなしで破棄される。
+     */
+    @Name("jp.dip.oyasirazu.domelementsorter.SortPhase")
+    @Label("Sort Phase")
+    @Category("DOMElementSorter")
+    @Description("DOMElementSorter の処理フェーズ")
+    static final class SortPhaseEvent extends Event {
+
+        /** パースフェーズ。 */
+        static final String PHASE_PARSE = "parse";
+
+        /** ノード削除フェーズ。 */
+        static final String PHASE_REMOVE_NODES = "removeNodes";
+
+        /** ソートフェーズ。 */
+        static final String PHASE_SORT = "sort";
+
+        /** 文字列化フェーズ。 */
+        static final String PHASE_SERIALIZE = "serialize";
 
-            NodeList excludeNodeList = (NodeList)xpath.evaluate(
-                    excludeXPath,
-                    document,
-                    XPathConstants.NODESET);
-
-            int excludeNodeListLength = excludeNodeList.getLength();
-            for (int i = 0; i < excludeNodeListLength; i++) {
-                Node node = excludeNodeList.item(i);
-                Node parentNode = node.getParentNode();
-
-                if (parentNode != null) {
-                    parentNode.removeChild(node);
-                } else {
-                    if (node instanceof Attr) {
-                        Attr attr = (Attr)node;
-                        Element ownerElement = attr.getOwnerElement();
-                        ownerElement.removeAttributeNode(attr);
+        /**
+         * フェーズ名。
+         */
+        @Label("Phase")
+        String phase;
+
+        /**
+         * 対象 Document の URI。
+         */
+        @Label("Document URI")
+        String documentUri;
+
+        /**
+         * イベントを作成し、計測を開始する。
+         *
+         * @param phase フェーズ名
+         * @param node 対象ノード(null 可)
+         * @return 計測中のイベント
+         */
+        static SortPhaseEvent begin(final String phase, final Node node) {
+            SortPhaseEvent event = new SortPhaseEvent();
+            if (event.isEnabled()) {
+                event.phase = phase;
+                event.documentUri = documentUriOf(node);
+            }
+            event.begin();
+            return event;
+        }
+
+        /**
+         * ノードが属する Document の URI を取得する。
+         *
+         * @param node ノード(null 可)
+         * @return Document の URI。不明な場合は null
+         */
+        private static String documentUriOf(final Node node) {
+            if (node == null) {
+                return null;
+            }
+            if (node.getNodeType() == Node.DOCUMENT_NODE) {
+                return ((Document)node).getDocumentURI();
+            }
+            Document document = node.getOwnerDocument();
+            return document == null ? null : document.getDocumentURI();
+        }
+    }
+
+    /**
+     * 子ノード数が多い兄弟リストのソートごとの JFR イベント。
+     */
+    @Name("jp.dip.oyasirazu.domelementsorter.SiblingListSort")
+    @Label("Sibling List Sort")
+    @Category("DOMElementSorter")
+    @Description("子ノード数が閾値以上の兄弟リストのソート")
+    static final class SiblingListSortEvent extends Event {
+
+        /**
+         * イベントを記録する子ノード数の閾値。
+         */
+        static final int THRESHOLD = 1000;
+
+        /**
+         * 親ノードのパス。
+         */
+        @Label("Parent Path")
+        String parentPath;
+
+        /**
+         * 子ノード数。
+         */
+        @Label("Child Count")
+        int childCount;
+
+        /**
+         * 比較・並べ替えにかかった時間。
+         */
+        @Label("Comparator Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long comparatorTime;
+
+        /**
+         * 並列ソートを利用したか。
+         */
+        @Label("Parallel")
+        boolean parallel;
+
+        /**
+         * ソートに使用した値(--useValue の XPath 式)。
+         */
+        @Label("Sort Values")
+        String sortValues;
+
+        /**
+         * 比較クラスがソートに使用する値を表す文字列を作成する。
+         *
+         * NodeComparatorXPath の場合は XPath 式を , で連結した文字列、
+         * NODE_COMPARATOR_DEFAULT の場合は "name()"、
+         * それ以外の場合はクラス名を返却する。
+         *
+         * @param comparator 比較クラス
+         * @return ソートに使用する値を表す文字列
+         */
+        static String describe(final Comparator<Node> comparator) {
+            if (comparator instanceof NodeComparatorXPath) {
+                return String.join(", ",
+                        ((NodeComparatorXPath)comparator).getUseValues());
+            } else if (comparator == NODE_COMPARATOR_DEFAULT) {
+                return "name()";
+            }
+            return comparator.getClass().getName();
+        }
+
+        /**
+         * ノードのパスをノード名を / で連結して作成する。
+         *
+         * @param node ノード
+         * @return ノードのパス
+         */
+        static String pathOf(final Node node) {
+            StringBuilder sb = new StringBuilder();
+            for (Node n = node; n != null
+                    && n.getNodeType() != Node.DOCUMENT_NODE;
+                    n = n.getParentNode()) {
+                sb.insert(0, n.getNodeName()).insert(0, '/');
+            }
+            return sb.length() == 0 ? "/" : sb.toString();
+        }
+    }
+
+    /**
+     * 大量の兄弟ノードをソートするためのクラス。
+     *
+     * 各ノードのソートキーをチャンク単位で並列に抽出して配列に格納し、
+     * 文書順をタイブレーカーとして Arrays.parallelSort でソートする。
+     * NODE_COMPARATOR_DEFAULT と NodeComparatorXPath の比較結果と同じ順序になる。
+     *
+     * JAXP の XPath 評価は呼び出しのたびに文書の先頭から DTM を構築するため、
+     * ノードの位置に比例した時間がかかる。
+     * そのため ".", "@NAME", "text()" の単純な式は DOM から直接評価し、
+     * それ以外の式のみ XPath として評価する(KeyExpression 参照)。
+     */
+    static final class LargeSiblingListSorter {
+
+        /**
+         * 一つのチャンクに含める最小ノード数。
+         */
+        private static final int MIN_CHUNK_SIZE = 1024;
+
+        /**
+         * ソートキーの比較用クラス。同値の場合は文書順で比較し、安定ソートとする。
+         */
+        private static final Comparator<SortKey> SORT_KEY_COMPARATOR =
+                new Comparator<SortKey>() {
+            @Override
+            public int compare(final SortKey k1, final SortKey k2) {
+                int result = k1.compareTo(k2);
+                if (result != 0) {
+                    return result;
+                }
+                return Integer.compare(k1.index, k2.index);
+            }
+        };
+
+        /**
+         * constructor.
+         */
+        private LargeSiblingListSorter() { }
+
+        /**
+         * 指定された比較クラスのソートキーを抽出できるかを判定する。
+         *
+         * サブクラスは compare をオーバーライドしている可能性があるため対象外。
+         *
+         * @param comparator 比較クラス
+         * @return 判定結果(true:抽出できる, false:抽出できない)
+         */
+        static boolean isSupported(final Comparator<Node> comparator) {
+            return comparator == NODE_COMPARATOR_DEFAULT
+                    || comparator.getClass() == NodeComparatorXPath.class;
+        }
+
+        /**
+         * 兄弟ノードのリストをソートする。
+         *
+         * @param nodes ソートするノードのリスト(文書順)
+         * @param comparator 比較クラス(isSupported が true であること)
+         * @param parallelExtract ソートキーを並列に抽出するか
+         * @param progress 進捗報告・中断用オブジェクト(null の場合は報告しない)
+         * @return ソート済みノードのリスト
+         * @throws SortCancelledException 中断またはタイムアウト時
+         */
+        static ArrayList<Node> sort(final List<Node> nodes,
+                final Comparator<Node> comparator,
+                final boolean parallelExtract,
+                final SortProgress progress) {
+
+            final int size = nodes.size();
+            final SortKey[] keys = new SortKey[size];
+
+            List<KeyExpression> keyExpressions = null;
+            if (comparator instanceof NodeComparatorXPath) {
+                keyExpressions = new ArrayList<>();
+                for (String useValue
+                        : ((NodeComparatorXPath)comparator).getUseValues()) {
+                    keyExpressions.add(KeyExpression.of(useValue));
+                }
+            }
+            final List<KeyExpression> simpleExpressions = keyExpressions;
+
+            int chunkCount = 1;
+            if (parallelExtract) {
+                chunkCount = Math.max(1, Math.min(size / MIN_CHUNK_SIZE,
+                        ForkJoinPool.getCommonPoolParallelism() * 4));
+            }
+            final int chunkSize = (size + chunkCount - 1) / chunkCount;
+
+            IntStream chunks = IntStream.range(0, chunkCount);
+            if (parallelExtract) {
+                chunks = chunks.parallel();
+            }
+            chunks.forEach(chunk -> {
+                if (progress != null) {
+                    progress.checkCancelled();
+                }
+
+                // XPathExpression はチャンクごとにコンパイルする
+                List<XPathExpression> expressions = null;
+                if (comparator instanceof NodeComparatorXPath) {
+                    try {
+                        expressions = ((NodeComparatorXPath)comparator)
+                                .compileExpressions();
+                    } catch (XPathExpressionException e) {
+                        // コンストラクタでコンパイル済みなので発生しない
+                        throw new IllegalStateException(e);
+                    }
+                }
+
+                int end = Math.min(size, (chunk + 1) * chunkSize);
+                for (int i = chunk * chunkSize; i < end; i++) {
+                    keys[i] = new SortKey(i, nodes.get(i),
+                            simpleExpressions, expressions);
+                }
+            });
+
+            if (progress != null) {
+                progress.checkCancelled();
+            }
+            Arrays.parallelSort(keys, SORT_KEY_COMPARATOR);
+
+            ArrayList<Node> sorted = new ArrayList<>(size);
+            for (SortKey key : keys) {
+                sorted.add(key.node);
+            }
+            return sorted;
+        }
+
+        /**
+         * ソートキーの抽出に使用する式。
+         *
+         * 以下の単純な式は XPath を評価せずに DOM から直接結果ノードを取得する。
+         * 取得結果は XPath で評価した場合と同じノードになる。
+         * 隣接するテキストノードがあり XPath のテキストノードと
+         * DOM のテキストノードが一対一に対応しない場合は XPath で評価する。
+         *
+         * <ul>
+         * <li>"." : ノード自身</li>
+         * <li>"@NAME", "./@NAME" : 接頭辞なしの属性</li>
+         * <li>"text()", "./text()" : 最初のテキストの子ノード</li>
+         * </ul>
+         */
+        static final class KeyExpression {
+
+            /**
+             * 直接評価する属性を表すパターン。
+             */
+            private static final Pattern ATTRIBUTE_PATTERN =
+                    Pattern.compile("(?:\\./)?@([A-Za-z_][A-Za-z0-9_.\\-]*)");
+
+            /**
+             * 式の種類:XPath として評価する。
+             */
+            private static final int XPATH = 0;
+
+            /**
+             * 式の種類:ノード自身。
+             */
+            private static final int SELF = 1;
+
+            /**
+             * 式の種類:属性。
+             */
+            private static final int ATTRIBUTE = 2;
+
+            /**
+             * 式の種類:最初のテキストの子ノード。
+             */
+            private static final int TEXT = 3;
+
+            /**
+             * 式の種類。
+             */
+            private final int kind;
+
+            /**
+             * 属性名(ATTRIBUTE 以外は null)。
+             */
+            private final String attributeName;
+
+            /**
+             * コンストラクタ。
+             *
+             * @param kind 式の種類
+             * @param attributeName 属性名
+             */
+            private KeyExpression(final int kind, final String attributeName) {
+                this.kind = kind;
+                this.attributeName = attributeName;
+            }
+
+            /**
+             * XPath 式文字列から KeyExpression を作成する。
+             *
+             * @param useValue XPath 式文字列
+             * @return KeyExpression
+             */
+            static KeyExpression of(final String useValue) {
+                String expression = useValue.trim();
+                if (expression.equals(".")) {
+                    return new KeyExpression(SELF, null);
+                }
+                if (expression.equals("text()")
+                        || expression.equals("./text()")) {
+                    return new KeyExpression(TEXT, null);
+                }
+                Matcher matcher = ATTRIBUTE_PATTERN.matcher(expression);
+                // xmlns は XPath では属性ではなく名前空間ノードとして扱われる
+                if (matcher.matches() && !matcher.group(1).equals("xmlns")) {
+                    return new KeyExpression(ATTRIBUTE, matcher.group(1));
+                }
+                return new KeyExpression(XPATH, null);
+            }
+
+            /**
+             * 式を評価して結果ノードを返却する。
+             *
+             * @param node 評価対象ノード
+             * @param expression 同じ式のコンパイル済み XPath 式
+             * @return 結果ノード(結果がない場合は null)
+             * @throws XPathExpressionException XPath 処理失敗時
+             * @throws ClassCastException 結果がノードでない場合
+             */
+            Node evaluate(final Node node, final XPathExpression expression)
+                    throws XPathExpressionException {
+                // エンティティ参照や隣接するテキストノードは
+                // XPath のテキストノードと対応しない
+                if (kind == XPATH
+                        || node.getNodeType() == Node.ENTITY_REFERENCE_NODE
+                        || (isText(node)
+                            && (isText(node.getPreviousSibling())
+                                || isText(node.getNextSibling())))) {
+                    return (Node)(expression.evaluate(
+                            node, XPathConstants.NODE));
+                }
+
+                switch (kind) {
+                case SELF:
+                    return node;
+                case ATTRIBUTE:
+                    if (node.getNodeType() != Node.ELEMENT_NODE) {
+                        return null;
+                    }
+                    return ((Element)node).getAttributeNode(attributeName);
+                case TEXT:
+                    if (node.getNodeType() != Node.ELEMENT_NODE) {
+                        return null;
+                    }
+                    if (hasSimpleText(node)) {
+                        return firstTextChild(node);
+                    }
+                    break;
+                default:
+                    break;
+                }
+                return (Node)(expression.evaluate(node, XPathConstants.NODE));
+            }
+
+            /**
+             * 子ノードのテキストノードが XPath のテキストノードと
+             * 一対一に対応するかを返却する。
+             *
+             * エンティティ参照や隣接するテキストノードがある場合は対応しない。
+             *
+             * @param node 親ノード
+             * @return 判定結果
+             */
+            private static boolean hasSimpleText(final Node node) {
+                for (Node child = node.getFirstChild(); child != null;
+                        child = child.getNextSibling()) {
+                    if (child.getNodeType() == Node.ENTITY_REFERENCE_NODE
+                            || (isText(child)
+                                && isText(child.getNextSibling()))) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            /**
+             * 最初のテキストの子ノードを返却する。
+             *
+             * @param node 親ノード
+             * @return 最初のテキストの子ノード(ない場合は null)
+             */
+            private static Node firstTextChild(final Node node) {
+                for (Node child = node.getFirstChild(); child != null;
+                        child = child.getNextSibling()) {
+                    if (isText(child)) {
+                        return child;
+                    }
+                }
+                return null;
+            }
+
+            /**
+             * XPath のテキストノードに対応するノードかを返却する。
+             *
+             * @param node ノード(null 可)
+             * @return 判定結果
+             */
+            private static boolean isText(final Node node) {
+                if (node == null) {
+                    return false;
+                }
+                short type = node.getNodeType();
+                return type == Node.TEXT_NODE
+                        || type == Node.CDATA_SECTION_NODE
+                        || type == Node.ENTITY_REFERENCE_NODE;
+            }
+        }
+
+        /**
+         * 一つのノードから抽出したソートキー。
+         */
+        private static final class SortKey {
+
+            /**
+             * 文書順のインデックス。
+             */
+            private final int index;
+
+            /**
+             * ソート対象ノード。
+             */
+            private final Node node;
+
+            /**
+             * ノードの種類。
+             */
+            private final short nodeType;
+
+            /**
+             * XPath 式ごとの評価結果ノード名。
+             * XPath 式を使わない場合はノード自身の名前のみを格納する。
+             * 評価結果がない場合は null。
+             */
+            private final String[] names;
+
+            /**
+             * XPath 式ごとの評価結果ノードの値。
+             */
+            private final String[] values;
+
+            /**
+             * XPath 式ごとの評価結果ノードが Element かどうか。
+             */
+            private final boolean[] isElements;
+
+            /**
+             * コンストラクタ。
+             *
+             * @param index 文書順のインデックス
+             * @param node ソート対象ノード
+             * @param keyExpressions ソートに使用する式リスト
+             *                    (NODE_COMPARATOR_DEFAULT の場合は null)
+             * @param expressions keyExpressions と同じ順のコンパイル済み XPath 式リスト
+             *                    (NODE_COMPARATOR_DEFAULT の場合は null)
+             */
+            SortKey(final int index, final Node node,
+                    final List<KeyExpression> keyExpressions,
+                    final List<XPathExpression> expressions) {
+                this.index = index;
+                this.node = node;
+                this.nodeType = node.getNodeType();
+
+                if (expressions == null) {
+                    names = new String[] {node.getNodeName()};
+                    values = null;
+                    isElements = null;
+                    return;
+                }
+
+                int count = expressions.size();
+                names = new String[count];
+                values = new String[count];
+                isElements = new boolean[count];
+                for (int i = 0; i < count; i++) {
+                    try {
+                        Node result = keyExpressions.get(i).evaluate(
+                                node, expressions.get(i));
+                        if (result != null) {
+                            names[i] = result.getNodeName();
+                            values[i] = result.getNodeValue();
+                            isElements[i] =
+                                    result.getNodeType() == Node.ELEMENT_NODE;
+                        }
+                    } catch (XPathExpressionException | RuntimeException e) {
+                        // 評価失敗。NodeComparatorXPath と同様に比較に使わない。
+                        continue;
+                    }
+                }
+            }
+
+            /**
+             * ソートキーを比較する。
+             *
+             * @param other 比較対象
+             * @return 比較結果
+             */
+            int compareTo(final SortKey other) {
+                // NODE_COMPARATOR_DEFAULT: タグ名でソート
+                if (isElements == null) {
+                    return names[0].compareTo(other.names[0]);
+                }
+
+                // 以下 NodeComparatorXPath と同じ判定を行う
+                if (nodeType != other.nodeType) {
+                    return nodeType - other.nodeType;
+                }
+
+                for (int i = 0; i < names.length; i++) {
+                    if (names[i] == null || other.names[i] == null) {
+                        continue;
+                    }
+
+                    int result;
+                    if (isElements[i]) {
+                        // Element の場合は、タグ名でソート
+                        result = names[i].compareTo(other.names[i]);
+                    } else {
+                        // Element 以外の場合はテキストでソート
+                        // 値がない場合は比較失敗とし、判断は次に持ち越す
+                        if (values[i] == null || other.values[i] == null) {
+                            continue;
+                        }
+                        result = values[i].compareTo(other.values[i]);
+                    }
+
+                    if (result != 0) {
+                        return result;
+                    }
+                }
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Document 作成時のパーサー設定を表すクラス。
+     *
+     * DocumentBuilder はスレッドごとにプールし、
+     * Document を作成するたびに reset() してから再利用する。
+     */
+    public static final class ParserProfile {
+
+        /**
+         * JAXP のデフォルト設定そのままのプロファイル。
+         */
+        public static final ParserProfile DEFAULT = new ParserProfile(
+                true, true, false, false);
+
+        /**
+         * ノードの展開を遅延させない以外は JAXP のデフォルト設定のプロファイル。
+         *
+         * パース結果は DEFAULT と同じだが、
+         * 大量の兄弟ノードのソートキーを並列に抽出できる。
+         */
+        public static final ParserProfile EXPANDED = new ParserProfile(
+                true, false, false, false);
+
+        /**
+         * 大きな XML 向けに調整したプロファイル。
+         *
+         * <ul>
+         * <li>外部 DTD：読み込まない</li>
+         * <li>ノード展開の遅延：しない</li>
+         * <li>名前空間：認識しない</li>
+         * <li>セキュア処理：有効</li>
+         * </ul>
+         */
+        public static final ParserProfile TUNED = new ParserProfile(
+                false, false, false, true);
+
+        /**
+         * 名前を指定してプロファイルを取得する。
+         *
+         * @param name プロファイル名(default, expanded, tuned)
+         * @return プロファイル
+         * @throws IllegalArgumentException 不明な名前の場合
+         */
+        public static ParserProfile of(final String name) {
+            if ("default".equalsIgnoreCase(name)) {
+                return DEFAULT;
+            } else if ("expanded".equalsIgnoreCase(name)) {
+                return EXPANDED;
+            } else if ("tuned".equalsIgnoreCase(name)) {
+                return TUNED;
+            }
+            throw new IllegalArgumentException(
+                    "unknown parser profile: " + name);
+        }
+
+        /**
+         * 外部 DTD 読み込み有無を指定するフィーチャー名。
+         */
+        private static final String FEATURE_LOAD_EXTERNAL_DTD =
+                "http://apache.org/xml/features/nonvalidating/load-external-dtd";
+
+        /**
+         * ノード展開遅延有無を指定するフィーチャー名。
+         */
+        private static final String FEATURE_DEFER_NODE_EXPANSION =
+                "http://apache.org/xml/features/dom/defer-node-expansion";
+
+        /**
+         * 展開済み Document であることを記録するユーザーデータのキー。
+         */
+        private static final String USER_DATA_EXPANDED =
+                ParserProfile.class.getName() + ".expanded";
+
+        /**
+         * 外部 DTD を読み込むか。
+         */
+        private final boolean loadExternalDtd;
+
+        /**
+         * ノードの展開を遅延させるか。
+         */
+        private final boolean deferNodeExpansion;
+
+        /**
+         * 名前空間を認識するか。
+         */
+        private final boolean namespaceAware;
+
+        /**
+         * セキュア処理(エンティティ展開数などの制限)を有効にするか。
+         * false の場合は JAXP の既定値に従う。
+         */
+        private final boolean secureProcessing;
+
+        /**
+         * DocumentBuilder 作成用ファクトリ。
+         */
+        private DocumentBuilderFactory factory;
+
+        /**
+         * スレッドごとの DocumentBuilder。
+         */
+        private final ThreadLocal<DocumentBuilder> builders =
+                new ThreadLocal<>();
+
+        /**
+         * コンストラクタ。
+         *
+         * @param loadExternalDtd 外部 DTD を読み込むか
+         * @param deferNodeExpansion ノードの展開を遅延させるか
+         * @param namespaceAware 名前空間を認識するか
+         * @param secureProcessing セキュア処理を有効にするか
+         */
+        public ParserProfile(final boolean loadExternalDtd,
+                final boolean deferNodeExpansion,
+                final boolean namespaceAware,
+                final boolean secureProcessing) {
+            this.loadExternalDtd = loadExternalDtd;
+            this.deferNodeExpansion = deferNodeExpansion;
+            this.namespaceAware = namespaceAware;
+            this.secureProcessing = secureProcessing;
+        }
+
+        /**
+         * 外部 DTD を読み込むかを返却する。
+         *
+         * @return 外部 DTD を読み込むか
+         */
+        public boolean isLoadExternalDtd() {
+            return loadExternalDtd;
+        }
+
+        /**
+         * ノードの展開を遅延させるかを返却する。
+         *
+         * @return ノードの展開を遅延させるか
+         */
+        public boolean isDeferNodeExpansion() {
+            return deferNodeExpansion;
+        }
+
+        /**
+         * 名前空間を認識するかを返却する。
+         *
+         * @return 名前空間を認識するか
+         */
+        public boolean isNamespaceAware() {
+            return namespaceAware;
+        }
+
+        /**
+         * セキュア処理を有効にするかを返却する。
+         *
+         * @return セキュア処理を有効にするか
+         */
+        public boolean isSecureProcessing() {
+            return secureProcessing;
+        }
+
+        /**
+         * 現在のスレッド用の DocumentBuilder を取得する。
+         *
+         * 初回はファクトリから作成し、二回目以降は reset() して再利用する。
+         *
+         * @return DocumentBuilder インスタンス
+         * @throws ParserConfigurationException
+         *              パーサーの重大な構成エラー発生時
+         */
+        public DocumentBuilder getDocumentBuilder()
+                throws ParserConfigurationException {
+            DocumentBuilder builder = builders.get();
+            if (builder == null) {
+                builder = newDocumentBuilder();
+                builders.set(builder);
+            } else {
+                builder.reset();
+            }
+            return builder;
+        }
+
+        /**
+         * 指定されたファイルから Document を作成する。
+         *
+         * @param file XML ファイル
+         * @return Document インスタンス
+         * @throws SAXException SAX の一般的なエラーまたは警告発生時
+         * @throws ParserConfigurationException
+         *              パーサーの重大な構成エラー発生時
+         * @throws IOException なんらかの入出力例外の発生時
+         */
+        public Document parse(final File file)
+                throws SAXException, IOException,
+                       ParserConfigurationException {
+            return markExpanded(getDocumentBuilder().parse(file));
+        }
+
+        /**
+         * 指定されたストリームから Document を作成する。
+         *
+         * @param inputStream XML を読み込むストリーム
+         * @return Document インスタンス
+         * @throws SAXException SAX の一般的なエラーまたは警告発生時
+         * @throws ParserConfigurationException
+         *              パーサーの重大な構成エラー発生時
+         * @throws IOException なんらかの入出力例外の発生時
+         */
+        public Document parse(final InputStream inputStream)
+                throws SAXException, IOException,
+                       ParserConfigurationException {
+            return markExpanded(getDocumentBuilder().parse(inputStream));
+        }
+
+        /**
+         * 指定された入力ソースから Document を作成する。
+         *
+         * @param source XML の入力ソース
+         * @return Document インスタンス
+         * @throws SAXException SAX の一般的なエラーまたは警告発生時
+         * @throws ParserConfigurationException
+         *              パーサーの重大な構成エラー発生時
+         * @throws IOException なんらかの入出力例外の発生時
+         */
+        public Document parse(final InputSource source)
+                throws SAXException, IOException,
+                       ParserConfigurationException {
+            return markExpanded(getDocumentBuilder().parse(source));
+        }
+
+        /**
+         * 指定されたノードが、ノード展開を遅延させずに作成した
+         * Document に属しているかを判定する。
+         *
+         * 遅延展開された DOM は参照時に内部状態を書き換えるため、
+         * 複数スレッドから同時に参照できるのはこの判定が true の場合のみ。
+         *
+         * @param node 判定するノード
+         * @return 判定結果(true:展開済み, false:不明または遅延展開)
+         */
+        public static boolean isExpanded(final Node node) {
+            Document document;
+            if (node.getNodeType() == Node.DOCUMENT_NODE) {
+                document = (Document)node;
+            } else {
+                document = node.getOwnerDocument();
+            }
+            return document != null
+                    && Boolean.TRUE.equals(
+                            document.getUserData(USER_DATA_EXPANDED));
+        }
+
+        /**
+         * ノード展開を遅延させていない場合、Document にその旨を記録する。
+         *
+         * @param document 記録する Document
+         * @return 引数の Document
+         */
+        private Document markExpanded(final Document document) {
+            if (!deferNodeExpansion) {
+                document.setUserData(USER_DATA_EXPANDED, Boolean.TRUE, null);
+            }
+            return document;
+        }
+
+        /**
+         * 設定を反映した DocumentBuilder を作成する。
+         *
+         * DocumentBuilderFactory はスレッドセーフではないため、
+         * ファクトリへのアクセスは同期する。
+         *
+         * @return DocumentBuilder インスタンス
+         * @throws ParserConfigurationException
+         *              パーサーの重大な構成エラー発生時
+         */
+        private synchronized DocumentBuilder newDocumentBuilder()
+                throws ParserConfigurationException {
+            if (factory == null) {
+                DocumentBuilderFactory f =
+                        DocumentBuilderFactory.newInstance();
+                f.setNamespaceAware(namespaceAware);
+
+                // Xerces 固有のフィーチャーは既定値と異なる場合のみ設定し、
+                // Xerces 以外のパーサーでも DEFAULT は従来通り動くようにする
+                if (!loadExternalDtd) {
+                    f.setFeature(FEATURE_LOAD_EXTERNAL_DTD, false);
+                }
+                if (!deferNodeExpansion) {
+                    f.setFeature(FEATURE_DEFER_NODE_EXPANSION, false);
+                }
+                // false の場合は JAXP の既定値のままとする
+                if (secureProcessing) {
+                    f.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING,
+                            true);
+                }
+                factory = f;
+            }
+            return factory.newDocumentBuilder();
+        }
+    }
+
+    /**
+     * DOM ツリーを作るのに便利な機能を実装したユーティリティクラス。
+     */
+    public static final class Util {
+
+        /**
+         * ファイル入出力、圧縮・展開に使用するバッファサイズ。
+         */
+        private static final int IO_BUFFER_SIZE = 1024 * 1024;
+
+        /**
+         * 出力用スタイルシートのコンパイル済みテンプレート。
+         */
+        private static Templates styleTemplates;
+
+        /**
+         * constructor.
+         */
+        private Util() { }
+
+        /**
+         * ファイルの圧縮形式。
+         */
+        public enum Compression {
+            /** 圧縮なし。 */
+            NONE,
+            /** gzip 形式(拡張子 .gz)。 */
+            GZIP,
+            /** zip 形式(拡張子 .zip)。先頭エントリのみを扱う。 */
+            ZIP,
+            /** zlib 形式(拡張子 .zz, .deflate)。 */
+            DEFLATE;
+
+            /**
+             * ファイル名の拡張子から圧縮形式を判定する。
+             *
+             * @param fileName ファイル名
+             * @return 圧縮形式
+             */
+            public static Compression fromFileName(final String fileName) {
+                String lower = fileName.toLowerCase(Locale.ROOT);
+                if (lower.endsWith(".gz")) {
+                    return GZIP;
+                } else if (lower.endsWith(".zip")) {
+                    return ZIP;
+                } else if (lower.endsWith(".zz")
+                        || lower.endsWith(".deflate")) {
+                    return DEFLATE;
+                }
+                return NONE;
+            }
+
+            /**
+             * ストリーム先頭のマジックバイトから圧縮形式を判定する。
+             *
+             * ファイル名の拡張子は参照しない。
+             * 拡張子が .gz などでも、中身が圧縮されていなければ NONE を返す。
+             * ストリームの読み込み位置は判定前の位置に戻す。
+             *
+             * @param bis 判定するストリーム
+             * @return 圧縮形式
+             * @throws IOException なんらかの入出力例外の発生時
+             */
+            static Compression detect(final BufferedInputStream bis)
+                    throws IOException {
+                bis.mark(4);
+                byte[] magic = bis.readNBytes(4);
+                bis.reset();
+
+                if (magic.length >= 2) {
+                    int b0 = magic[0] & 0xff;
+                    int b1 = magic[1] & 0xff;
+                    if (b0 == 0x1f && b1 == 0x8b) {
+                        return GZIP;
+                    }
+                    if (magic.length == 4 && b0 == 'P' && b1 == 'K'
+                            && magic[2] == 3 && magic[3] == 4) {
+                        return ZIP;
+                    }
+                    // zlib ヘッダー(CM=8, CINFO<=7, チェックビット)。
+                    // XML は '<' か空白文字か BOM で始まるため、
+                    // zlib ヘッダーと誤判定することはない
+                    if ((b0 & 0x0f) == 8 && (b0 >> 4) <= 7
+                            && (b0 * 256 + b1) % 31 == 0) {
+                        return DEFLATE;
+                    }
+                }
+                return NONE;
+            }
+        }
+
+        /**
+         * 別スレッドで元ストリームを先読みする入力ストリーム。
+         *
+         * 展開処理をパース処理と並行させるために使用する。
+         */
+        private static final class ReadAheadInputStream extends InputStream {
+
+            /**
+             * 一度に先読みするバイト数。
+             */
+            private static final int CHUNK_SIZE = 256 * 1024;
+
+            /**
+             * 先読みしておくチャンク数の上限。
+             */
+            private static final int MAX_CHUNKS = 8;
+
+            /**
+             * 終端を表すチャンク。
+             */
+            private static final byte[] END_OF_STREAM = new byte[0];
+
+            /**
+             * 先読みしたチャンクのキュー。
+             */
+            private final BlockingQueue<byte[]> queue =
+                    new ArrayBlockingQueue<>(MAX_CHUNKS);
+
+            /**
+             * 元ストリーム。
+             */
+            private final InputStream source;
+
+            /**
+             * 先読みスレッド。
+             */
+            private final Thread reader;
+
+            /**
+             * 先読みスレッドで発生した例外(IOException, RuntimeException, Error)。
+             * 読み込み側のスレッドで投げ直す。
+             */
+            private volatile Throwable error;
+
+            /**
+             * 読み込み中のチャンク。
+             */
+            private byte[] current = new byte[0];
+
+            /**
+             * 読み込み中のチャンク内の位置。
+             */
+            private int position;
+
+            /**
+             * 終端に達したか。
+             */
+            private boolean eof;
+
+            /**
+             * コンストラクタ。先読みスレッドを開始する。
+             *
+             * @param source 元ストリーム
+             */
+            ReadAheadInputStream(final InputStream source) {
+                this.source = source;
+                this.reader = new Thread(this::readAhead, "read-ahead");
+                this.reader.setDaemon(true);
+                this.reader.start();
+            }
+
+            /**
+             * 元ストリームを読み込み、チャンク単位でキューへ追加する。
+             */
+            private void readAhead() {
+                try {
+                    while (true) {
+                        byte[] chunk = new byte[CHUNK_SIZE];
+                        int n = source.readNBytes(chunk, 0, CHUNK_SIZE);
+                        if (n > 0) {
+                            queue.put(n == CHUNK_SIZE
+                                    ? chunk : Arrays.copyOf(chunk, n));
+                        }
+                        if (n < CHUNK_SIZE) {
+                            break;
+                        }
+                    }
+                } catch (IOException | RuntimeException | Error e) {
+                    error = e;
+                } catch (InterruptedException e) {
+                    // close された
+                    return;
+                }
+
+                try {
+                    queue.put(END_OF_STREAM);
+                } catch (InterruptedException e) {
+                    // close された
+                    return;
+                }
+            }
+
+            /**
+             * 読み込み中のチャンクを使い切っていれば、次のチャンクを取得する。
+             *
+             * @return 終端に達していれば true
+             * @throws IOException 先読み時に入出力例外が発生していた場合
+             */
+            private boolean fill() throws IOException {
+                while (!eof && position >= current.length) {
+                    try {
+                        current = queue.take();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                    position = 0;
+                    if (current == END_OF_STREAM) {
+                        eof = true;
+                        if (error instanceof IOException) {
+                            throw (IOException)error;
+                        } else if (error instanceof RuntimeException) {
+                            throw (RuntimeException)error;
+                        } else if (error != null) {
+                            throw (Error)error;
+                        }
+                    }
+                }
+                return eof;
+            }
+
+            @Override
+            public int read() throws IOException {
+                if (fill()) {
+                    return -1;
+                }
+                return current[position++] & 0xff;
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len)
+                    throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (fill()) {
+                    return -1;
+                }
+                int n = Math.min(len, current.length - position);
+                System.arraycopy(current, position, b, off, n);
+                position += n;
+                return n;
+            }
+
+            @Override
+            public int available() {
+                return current.length - position;
+            }
+
+            @Override
+            public void close() throws IOException {
+                // 先読みスレッドを止めてから元ストリームを閉じる
+                reader.interrupt();
+                try {
+                    reader.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                source.close();
+            }
+        }
+
+        /**
+         * 指定されたファイルから Document を作成する。
+         *
+         * @param filePath XML ファイルのパス
+         * @return Document インスタンス
+         * @throws SAXException SAX の一般的なエラーまたは警告発生時
+         * @throws ParserConfigurationException
+         *              パーサーの重大な構成エラー発生時
+         * @throws IOException なんらかの入出力例外の発生時
+         */
+        public static Document createDocument(final String filePath)
+                throws SAXException, IOException,
+                       ParserConfigurationException {
+            return createDocument(filePath, ParserProfile.DEFAULT);
+        }
+
+        /**
+         * 指定されたファイルから、指定したパーサープロファイルで Document を作成する。
+         *
+         * @param filePath XML ファイルのパス
+         * @param profile パーサープロファイル
+         * @return Document インスタンス
+         * @throws SAXException SAX の一般的なエラーまたは警告発生時
+         * @throws ParserConfigurationException
+         *              パーサーの重大な構成エラー発生時
+         * @throws IOException なんらかの入出力例外の発生時
+         */
+        public static Document createDocument(final String filePath,
+                final ParserProfile profile)
+                throws SAXException, IOException,
+                       ParserConfigurationException {
+            return createDocument(Paths.get(filePath), profile, null);
+        }
+
+        /**
+         * 指定されたファイルから、読み込んだバイト数を報告しながら Document を作成する。
+         *
+         * @param filePath XML ファイルのパス
+         * @param profile パーサープロファイル
+         * @param progress 進捗報告・中断用オブジェクト
+         * @return Document インスタンス
+         * @throws SAXException SAX の一般的なエラーまたは警告発生時
+         * @throws ParserConfigurationException
+         *              パーサーの重大な構成エラー発生時
+         * @throws IOException なんらかの入出力例外の発生時
+         * @throws SortCancelledException 中断またはタイムアウト時
+         */
+        public static Document createDocument(final String filePath,
+                final ParserProfile profile,
+                final SortProgress progress)
+                throws SAXException, IOException,
+                       ParserConfigurationException {
+
+            return createDocument(Paths.get(filePath), profile, progress);
+        }
+
+        /**
+         * 入力ストリームから Document を作成する。
+         *
+         * @param is XML の入力ストリーム
+         * @param profile パーサープロファイル
+         * @return Document インスタンス
+         * @throws SAXException SAX の一般的なエラーまたは警告発生時
+         * @throws ParserConfigurationException
+         *              パーサーの重大な構成エラー発生時
+         * @throws IOException なんらかの入出力例外の発生時
+         */
+        public static Document createDocument(final InputStream is,
+                final ParserProfile profile)
+                throws SAXException, IOException,
+                       ParserConfigurationException {
+
+            SortPhaseEvent event = SortPhaseEvent.begin(
+                    SortPhaseEvent.PHASE_PARSE, null);
+            try {
+                return profile.parse(is);
+            } finally {
+                event.commit();
+            }
+        }
+
+        /**
+         * 指定されたファイルから Document を作成する。
+         *
+         * 圧縮ファイルは展開しながら読み込む(openInputStream 参照)。
+         *
+         * @param path XML ファイルのパス
+         * @param profile パーサープロファイル
+         * @param progress 進捗報告・中断用オブジェクト(null の場合は報告しない)
+         * @return Document インスタンス
+         * @throws SAXException SAX の一般的なエラーまたは警告発生時
+         * @throws ParserConfigurationException
+         *              パーサーの重大な構成エラー発生時
+         * @throws IOException なんらかの入出力例外の発生時
+         */
+        private static Document createDocument(final Path path,
+                final ParserProfile profile,
+                final SortProgress progress)
+                throws SAXException, IOException,
+                       ParserConfigurationException {
+
+            SortPhaseEvent event = SortPhaseEvent.begin(
+                    SortPhaseEvent.PHASE_PARSE, null);
+            String systemId = path.toUri().toString();
+            event.documentUri = systemId;
+            try (InputStream is = openInputStream(path, progress)) {
+                InputSource source = new InputSource(is);
+                source.setSystemId(systemId);
+                return profile.parse(source);
+            } finally {
+                event.commit();
+            }
+        }
+
+        /**
+         * 指定されたファイルを読み込むための入力ストリームを作成する。
+         *
+         * 先頭のマジックバイトから圧縮形式を判定し(拡張子は参照しない)、
+         * 圧縮されている場合は展開しながら読み込むストリームを返却する。
+         * 展開処理は別スレッドで先読みし、パース処理と並行させる。
+         *
+         * @param path ファイルのパス
+         * @param progress 進捗報告・中断用オブジェクト(null の場合は報告しない)。
+         *                 読み込みバイト数は圧縮されたままのバイト数で報告する。
+         * @return 入力ストリーム
+         * @throws IOException なんらかの入出力例外の発生時
+         */
+        public static InputStream openInputStream(final Path path,
+                final SortProgress progress) throws IOException {
+
+            BufferedInputStream bis = new BufferedInputStream(
+                    Files.newInputStream(path), IO_BUFFER_SIZE);
+            try {
+                Compression compression = Compression.detect(bis);
+
+                InputStream is = bis;
+                if (progress != null) {
+                    is = progress.monitor(is);
+                }
+
+                switch (compression) {
+                case GZIP:
+                    is = new GZIPInputStream(is, IO_BUFFER_SIZE);
+                    break;
+                case ZIP:
+                    // 先頭エントリのみを読み込む
+                    ZipInputStream zis = new ZipInputStream(is);
+                    if (zis.getNextEntry() == null) {
+                        throw new IOException("zip file has no entry: " + path);
+                    }
+                    is = zis;
+                    break;
+                case DEFLATE:
+                    is = new InflaterInputStream(is,
+                            new Inflater(), IO_BUFFER_SIZE);
+                    break;
+                default:
+                    return is;
+                }
+                return new ReadAheadInputStream(is);
+            } catch (IOException | RuntimeException e) {
+                bis.close();
+                throw e;
+            }
+        }
+
+        /**
+         * 指定されたファイルへ書き込むための出力ストリームを作成する。
+         *
+         * ファイルの拡張子が圧縮形式を表す場合は、圧縮しながら書き込む。
+         * zip の場合は、拡張子 .zip を除いたファイル名のエントリを一つ作成する。
+         *
+         * @param path ファイルのパス
+         * @return 出力ストリーム
+         * @throws IOException なんらかの入出力例外の発生時
+         */
+        public static OutputStream openOutputStream(final Path path)
+                throws IOException {
+
+            OutputStream os = new BufferedOutputStream(
+                    Files.newOutputStream(path), IO_BUFFER_SIZE);
+            try {
+                switch (Compression.fromFileName(path.toString())) {
+                case GZIP:
+                    return new GZIPOutputStream(os, IO_BUFFER_SIZE);
+                case ZIP:
+                    ZipOutputStream zos = new ZipOutputStream(os);
+                    String fileName = path.getFileName().toString();
+                    zos.putNextEntry(new ZipEntry(fileName.substring(0,
+                            fileName.length() - ".zip".length())));
+                    return zos;
+                case DEFLATE:
+                    return new DeflaterOutputStream(os,
+                            new Deflater(), IO_BUFFER_SIZE);
+                default:
+                    return os;
+                }
+            } catch (IOException | RuntimeException e) {
+                os.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Document から XML 文字列を作成する。
+         *
+         * @param document Document インスタンス
+         * @return XML 文字列
+         * @throws TransformerException 変換処理例外発生時
+         */
+        public static String documentToString(final Document document)
+                throws TransformerException {
+
+            StringWriter sw = new StringWriter();
+            writeDocument(document, sw);
+            return sw.toString();
+        }
+
+        /**
+         * Document を XML として Writer へ書き出す。
+         *
+         * documentToString と同じ内容を、文字列全体を作成せずに書き出す。
+         * Writer は close しない。
+         *
+         * @param document Document インスタンス
+         * @param writer 書き出し先
+         * @throws TransformerException 変換処理例外発生時
+         */
+        public static void writeDocument(final Document document,
+                final Writer writer) throws TransformerException {
+            writeDocument(document, writer, newDocumentTransformer());
+        }
+
+        /**
+         * 指定した Transformer を使って Document を XML として Writer へ書き出す。
+         *
+         * 複数の Document を続けて書き出す場合に Transformer を使い回すために使用する。
+         * Writer は close しない。
+         *
+         * @param document Document インスタンス
+         * @param writer 書き出し先
+         * @param transformer newDocumentTransformer で作成した Transformer
+         * @throws TransformerException 変換処理例外発生時
+         */
+        public static void writeDocument(final Document document,
+                final Writer writer,
+                final Transformer transformer) throws TransformerException {
+            writeDocument(document, writer, transformer, null);
+        }
+
+        /**
+         * 中断要求を確認しながら Document を XML として Writer へ書き出す。
+         *
+         * Writer は close しない。
+         *
+         * @param document Document インスタンス
+         * @param writer 書き出し先
+         * @param transformer newDocumentTransformer で作成した Transformer
+         * @param progress 進捗報告・中断用オブジェクト(null の場合は確認しない)
+         * @throws TransformerException 変換処理例外発生時
+         * @throws SortCancelledException 中断またはタイムアウト時
+         */
+        public static void writeDocument(final Document document,
+                final Writer writer,
+                final Transformer transformer,
+                final SortProgress progress) throws TransformerException {
+
+            SortPhaseEvent event = SortPhaseEvent.begin(
+                    SortPhaseEvent.PHASE_SERIALIZE, document);
+            try {
+                // Java11 にバージョンアップしたら、空白文字だけの行が発生してしまったため、
+                // 暫定対応として空白文字だけの行を削除しながら書き出す。
+                BlankLineRemovingWriter blw =
+                        new BlankLineRemovingWriter(writer, progress);
+                transformer.transform(
+                        new DOMSource(document), new StreamResult(blw));
+                blw.finish();
+            } catch (IOException e) {
+                throw new TransformerException(e);
+            } catch (TransformerException e) {
+                // Transformer にラップされた中断例外は、そのまま投げ直す
+                for (Throwable t = e; t != null; t = t.getCause()) {
+                    if (t instanceof SortCancelledException) {
+                        throw (SortCancelledException)t;
+                    }
+                }
+                throw e;
+            } finally {
+                event.commit();
+            }
+        }
+
+        /**
+         * 出力用スタイルシート(style.xsl)を適用する Transformer を作成する。
+         *
+         * Transformer はスレッドセーフではないため、スレッドごとに作成すること。
+         *
+         * @return Transformer インスタンス
+         * @throws TransformerException スタイルシートのコンパイル失敗時
+         */
+        public static Transformer newDocumentTransformer()
+                throws TransformerException {
+            return getStyleTemplates().newTransformer();
+        }
+
+        /**
+         * 出力用スタイルシート(style.xsl)のコンパイル済みテンプレートを取得する。
+         *
+         * Templates はスレッドセーフなので、一度だけコンパイルして使い回す。
+         *
+         * @return コンパイル済みテンプレート
+         * @throws TransformerException スタイルシートのコンパイル失敗時
+         */
+        private static synchronized Templates getStyleTemplates()
+                throws TransformerException {
+            if (styleTemplates == null) {
+                TransformerFactory tfactory = TransformerFactory.newInstance();
+                styleTemplates = tfactory.newTemplates(new StreamSource(
+                        DOMElementSorter.class.getResourceAsStream("/style.xsl")));
+            }
+            return styleTemplates;
+        }
+
+        /**
+         * 空白文字だけの行を削除しながら書き出す Writer。
+         *
+         * 出力全体に対して
+         * {@code replaceAll("\r\n", "\n").replaceAll("(?m)^\\s*\n", "")}
+         * を行った場合と同じ結果を、改行ごとに処理することで得る。
+         * どちらの置換も、改行で区切った行ごとに行った場合と結果が変わらない。
+         */
+        private static final class BlankLineRemovingWriter extends Writer {
+
+            /**
+             * 空白文字だけの行にマッチする正規表現。
+             */
+            private static final Pattern BLANK_LINE =
+                    Pattern.compile("(?m)^\\s*\n");
+
+            /**
+             * 書き出し先。
+             */
+            private final Writer out;
+
+            /**
+             * 改行までの書き出し待ちの文字列。
+             */
+            private final StringBuilder line = new StringBuilder();
+
+            /**
+             * 進捗報告・中断用オブジェクト。
+             */
+            private final SortProgress progress;
+
+            /**
+             * コンストラクタ。
+             *
+             * @param out 書き出し先
+             * @param progress 進捗報告・中断用オブジェクト(null の場合は確認しない)
+             */
+            BlankLineRemovingWriter(final Writer out,
+                    final SortProgress progress) {
+                this.out = out;
+                this.progress = progress;
+            }
+
+            @Override
+            public void write(final char[] cbuf, final int off, final int len)
+                    throws IOException {
+                if (progress != null) {
+                    progress.checkCancelled();
+                }
+
+                int start = off;
+                int end = off + len;
+                for (int i = off; i < end; i++) {
+                    if (cbuf[i] == '\n') {
+                        line.append(cbuf, start, i + 1 - start);
+                        writeLine();
+                        start = i + 1;
+                    }
+                }
+                line.append(cbuf, start, end - start);
+            }
+
+            /**
+             * 改行で終わる一行を処理して書き出す。
+             *
+             * @throws IOException 書き出し失敗時
+             */
+            private void writeLine() throws IOException {
+                int last = line.length() - 1;
+                boolean blank = true;
+                for (int i = 0; i < last; i++) {
+                    char c = line.charAt(i);
+                    if (c == '\r' || c == '\u0085'
+                            || c == '\u2028' || c == '\u2029') {
+                        // 行の途中に改行文字がある場合は正規表現で処理する
+                        out.write(BLANK_LINE.matcher(
+                                line.toString().replace("\r\n", "\n"))
+                                .replaceAll(""));
+                        line.setLength(0);
+                        return;
+                    }
+                    if (c != ' ' && c != '\t' && c != '\u000B' && c != '\f') {
+                        blank = false;
+                    }
+                }
+
+                if (!blank) {
+                    out.append(line);
+                }
+                line.setLength(0);
+            }
+
+            /**
+             * 改行で終わっていない残りの文字列を書き出す。
+             * 書き出し先は close しない。
+             *
+             * @throws IOException 書き出し失敗時
+             */
+            void finish() throws IOException {
+                out.append(line);
+                line.setLength(0);
+                out.flush();
+            }
+
+            @Override
+            public void flush() throws IOException {
+                out.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                finish();
+            }
+        }
+
+        /**
+         * Document から XPath 式で指定したノードを削除する。
+         *
+         * @param document Document インスタンス
+         * @param excludeXPath 削除するノードの XPath 式
+         * @throws XPathExpressionException XPath 処理失敗時
+         */
+        public static void removeNodes(
+                final Document document,
+                final String excludeXPath) throws XPathExpressionException {
+            XPathFactory xpathfactory = XPathFactory.newInstance();
+            XPath xpath = xpathfactory.newXPath();
+
+            removeNodes(document, xpath.compile(excludeXPath));
+        }
+
+        /**
+         * Document からコンパイル済み XPath 式で指定したノードを削除する。
+         *
+         * @param document Document インスタンス
+         * @param excludeXPath 削除するノードの XPath 式
+         * @throws XPathExpressionException XPath 処理失敗時
+         */
+        public static void removeNodes(
+                final Document document,
+                final XPathExpression excludeXPath)
+                throws XPathExpressionException {
+            SortPhaseEvent event = SortPhaseEvent.begin(
+                    SortPhaseEvent.PHASE_REMOVE_NODES, document);
+            try {
+                NodeList excludeNodeList = (NodeList)excludeXPath.evaluate(
+                        document,
+                        XPathConstants.NODESET);
+
+                int excludeNodeListLength = excludeNodeList.getLength();
+                for (int i = 0; i < excludeNodeListLength; i++) {
+                    Node node = excludeNodeList.item(i);
+                    Node parentNode = node.getParentNode();
+
+                    if (parentNode != null) {
+                        parentNode.removeChild(node);
+                    } else {
+                        if (node instanceof Attr) {
+                            Attr attr = (Attr)node;
+                            Element ownerElement = attr.getOwnerElement();
+                            ownerElement.removeAttributeNode(attr);
+                        }
                     }
                 }
+            } finally {
+                event.commit();
             }
         }
     }
@@ -0,0 +1,529 @@
+package jp.dip.oyasirazu.domelementsorter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+/**
+ * FramedStreamSorter は、
+ * フレーム区切りのストリームから XML を連続して読み込み、
+ * ソートした XML を同じフレーム形式で書き出すクラスです。
+ *
+ * パーサー、コンパイル済み XPath 式、Transformer は
+ * すべてのドキュメントで使い回す。
+ * 入力は別スレッドで読み込み、上限付きのキューで処理スレッドへ渡す。
+ * キューはドキュメント数と合計バイト数の両方で制限し、
+ * 処理が追いつかない場合、キューが空くまで入力の読み込みを待つ。
+ * MAX_FRAME_SIZE を超えるフレームは読み込まずにエラーとする。
+ */
+public final class FramedStreamSorter {
+
+    /**
+     * フレームの区切り方。
+     */
+    public enum Framing {
+        /** ドキュメントの後ろに NUL(0x00) を置く。 */
+        NUL,
+        /** ドキュメントの前に 4 バイトのビッグエンディアンでバイト数を置く。 */
+        LENGTH;
+
+        /**
+         * オプション文字列からフレームの区切り方を取得する。
+         *
+         * @param name オプション文字列(nul, length)
+         * @return フレームの区切り方
+         * @throws IllegalArgumentException 不明な文字列の場合
+         */
+        public static Framing of(final String name) {
+            for (Framing framing : values()) {
+                if (framing.name().equalsIgnoreCase(name)) {
+                    return framing;
+                }
+            }
+            throw new IllegalArgumentException("unknown framing: " + name);
+        }
+    }
+
+    /**
+     * 入力キューに溜めておくドキュメント数の上限。
+     */
+    private static final int MAX_QUEUED_DOCUMENTS = 256;
+
+    /**
+     * 一つのフレームの最大バイト数。
+     */
+    public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * 入力キューに溜めておく合計バイト数の上限。
+     */
+    private static final int MAX_QUEUED_BYTES = 4 * MAX_FRAME_SIZE;
+
+    /**
+     * 入力の終端を表すフレーム。
+     */
+    private static final byte[] END_OF_STREAM = new byte[0];
+
+    /**
+     * フレームの区切り方。
+     */
+    private final Framing framing;
+
+    /**
+     * ソートのための比較クラス。
+     */
+    private final DOMElementSorter.NodeComparator comparator;
+
+    /**
+     * 出力対象外ノードを表す XPath 式(指定なしの場合は null)。
+     */
+    private final XPathExpression excludeXPath;
+
+    /**
+     * パーサープロファイル。
+     */
+    private final DOMElementSorter.ParserProfile profile;
+
+    /**
+     * 処理したドキュメント数。
+     */
+    private long documentCount;
+
+    /**
+     * 処理に失敗したドキュメント数。
+     */
+    private long errorCount;
+
+    /**
+     * コンストラクタ。
+     *
+     * 外部 DTD を読み込まない ParserProfile.TUNED でパースする。
+     *
+     * @param framing フレームの区切り方
+     * @param useValues ソートに使用するノードを表す XPath 式のリスト
+     *                  (null の場合はタグ名でソート)
+     * @param excludeXPath 出力対象外ノードを表す XPath 式
+     *                     (null または空文字の場合は削除しない)
+     * @throws XPathExpressionException XPath 式 の作成に失敗した場合。
+     */
+    public FramedStreamSorter(final Framing framing,
+            final List<String> useValues,
+            final String excludeXPath) throws XPathExpressionException {
+        this(framing, useValues, excludeXPath,
+                DOMElementSorter.ParserProfile.TUNED);
+    }
+
+    /**
+     * コンストラクタ。
+     *
+     * @param framing フレームの区切り方
+     * @param useValues ソートに使用するノードを表す XPath 式のリスト
+     *                  (null の場合はタグ名でソート)
+     * @param excludeXPath 出力対象外ノードを表す XPath 式
+     *                     (null または空文字の場合は削除しない)
+     * @param profile パーサープロファイル
+     * @throws XPathExpressionException XPath 式 の作成に失敗した場合。
+     */
+    public FramedStreamSorter(final Framing framing,
+            final List<String> useValues,
+            final String excludeXPath,
+            final DOMElementSorter.ParserProfile profile)
+            throws XPathExpressionException {
+        this.framing = framing;
+        this.profile = profile;
+
+        if (useValues != null) {
+            this.comparator =
+                    new DOMElementSorter.NodeComparatorXPath(useValues);
+        } else {
+            this.comparator = DOMElementSorter.NODE_COMPARATOR_DEFAULT;
+        }
+
+        if (excludeXPath != null && !excludeXPath.isEmpty()) {
+            this.excludeXPath = XPathFactory.newInstance().newXPath()
+                    .compile(excludeXPath);
+        } else {
+            this.excludeXPath = null;
+        }
+    }
+
+    /**
+     * 入力ストリームの終端まで、ドキュメントを読み込み、ソートして書き出す。
+     *
+     * 処理に失敗したドキュメント(外部 DTD の取得失敗なども含む)については、
+     * 標準エラー出力へメッセージを表示し、空のフレームを書き出す。
+     * 入出力ストリームは close しない。
+     *
+     * @param in 入力ストリーム
+     * @param out 出力ストリーム
+     * @throws IOException 入出力例外の発生時
+     *                     (出力先が閉じられた場合は残りの入力を処理せずに投げる)、
+     *                     MAX_FRAME_SIZE を超えるフレームを読み込んだ場合
+     * @throws TransformerException Transformer の作成失敗時
+     */
+    public void run(final InputStream in, final OutputStream out)
+            throws IOException, TransformerException {
+
+        BlockingQueue<byte[]> queue =
+                new ArrayBlockingQueue<>(MAX_QUEUED_DOCUMENTS);
+        Semaphore queuedBytes = new Semaphore(MAX_QUEUED_BYTES);
+        FrameReader reader = new FrameReader(in, queue, queuedBytes);
+        Thread readerThread = new Thread(reader, "frame-reader");
+        readerThread.setDaemon(true);
+        readerThread.start();
+
+        Transformer transformer =
+                DOMElementSorter.Util.newDocumentTransformer();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(out);
+
+        try {
+            while (true) {
+                byte[] frame = queue.take();
+                if (frame == END_OF_STREAM) {
+                    break;
+                }
+                queuedBytes.release(frame.length);
+
+                buffer.reset();
+                try {
+                    Writer writer = new OutputStreamWriter(
+                            buffer, StandardCharsets.UTF_8);
+                    sortDocument(frame, writer, transformer);
+                    writer.flush();
+                } catch (SAXException | ParserConfigurationException
+                        | XPathExpressionException | TransformerException
+                        | IOException | RuntimeException e) {
+                    System.err.println("document " + documentCount
+                            + ": " + e.getMessage());
+                    buffer.reset();
+                    errorCount++;
+                }
+                writeFrame(dos, buffer);
+                documentCount++;
+
+                // 次のドキュメントが届いていなければ、ここまでの出力を流す
+                if (queue.isEmpty()) {
+                    dos.flush();
+                }
+            }
+            dos.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            // 書き込みに失敗した場合も、読み込みスレッドを止めて残りの入力は読まない
+            readerThread.interrupt();
+        }
+
+        if (reader.error != null) {
+            throw reader.error;
+        }
+    }
+
+    /**
+     * 処理したドキュメント数を返却する。
+     *
+     * @return 処理したドキュメント数
+     */
+    public long getDocumentCount() {
+        return documentCount;
+    }
+
+    /**
+     * 処理に失敗したドキュメント数を返却する。
+     *
+     * @return 処理に失敗したドキュメント数
+     */
+    public long getErrorCount() {
+        return errorCount;
+    }
+
+    /**
+     * 一つのドキュメントをパースし、ソートして書き出す。
+     *
+     * @param frame ドキュメントのバイト列
+     * @param writer 書き出し先
+     * @param transformer 書き出しに使用する Transformer
+     * @throws SAXException SAX の一般的なエラーまたは警告発生時
+     * @throws ParserConfigurationException
+     *              パーサーの重大な構成エラー発生時
+     * @throws IOException なんらかの入出力例外の発生時
+     * @throws XPathExpressionException XPath 処理失敗時
+     * @throws TransformerException 変換処理例外発生時
+     */
+    private void sortDocument(final byte[] frame, final Writer writer,
+            final Transformer transformer)
+            throws SAXException, ParserConfigurationException, IOException,
+                   XPathExpressionException, TransformerException {
+
+        Document document = DOMElementSorter.Util.createDocument(
+                new ByteArrayInputStream(frame), profile);
+
+        if (excludeXPath != null) {
+            DOMElementSorter.Util.removeNodes(document, excludeXPath);
+        }
+
+        DOMElementSorter.sort(document, true,
+                DOMElementSorter.SORT_CONDITION_DEFAULT,
+                comparator,
+                DOMElementSorter.EXCLUDE_TARGET_CONDITION_DEFAULT);
+
+        DOMElementSorter.Util.writeDocument(document, writer, transformer);
+    }
+
+    /**
+     * 一つのドキュメントをフレームとして書き出す。
+     *
+     * @param dos 出力ストリーム
+     * @param buffer ドキュメントのバイト列
+     * @throws IOException 書き出し失敗時
+     */
+    private void writeFrame(final DataOutputStream dos,
+            final ByteArrayOutputStream buffer) throws IOException {
+        switch (framing) {
+        case LENGTH:
+            dos.writeInt(buffer.size());
+            buffer.writeTo(dos);
+            break;
+        case NUL:
+        default:
+            buffer.writeTo(dos);
+            dos.write(0);
+            break;
+        }
+    }
+
+    /**
+     * 入力ストリームからフレームを読み込み、キューへ追加するクラス。
+     */
+    private final class FrameReader implements Runnable {
+
+        /**
+         * 読み込みバッファのサイズ。
+         */
+        private static final int BUFFER_SIZE = 64 * 1024;
+
+        /**
+         * 入力ストリーム。
+         */
+        private final InputStream in;
+
+        /**
+         * 読み込んだフレームを渡すキュー。
+         */
+        private final BlockingQueue<byte[]> queue;
+
+        /**
+         * キューに溜めているバイト数の残り枠。
+         */
+        private final Semaphore queuedBytes;
+
+        /**
+         * 読み込みバッファ。
+         */
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+
+        /**
+         * 読み込みバッファ内の未処理データの開始位置。
+         */
+        private int position;
+
+        /**
+         * 読み込みバッファ内の未処理データの終了位置。
+         */
+        private int limit;
+
+        /**
+         * 読み込み時に発生した例外。
+         */
+        private volatile IOException error;
+
+        /**
+         * コンストラクタ。
+         *
+         * @param in 入力ストリーム
+         * @param queue 読み込んだフレームを渡すキュー
+         * @param queuedBytes キューに溜めているバイト数の残り枠
+         */
+        FrameReader(final InputStream in, final BlockingQueue<byte[]> queue,
+                final Semaphore queuedBytes) {
+            this.in = in;
+            this.queue = queue;
+            this.queuedBytes = queuedBytes;
+        }
+
+        @Override
+        public void run() {
+            try {
+                byte[] frame = readFrame();
+                while (frame != null) {
+                    queue.put(frame);
+                    frame = readFrame();
+                }
+            } catch (IOException e) {
+                error = e;
+            } catch (RuntimeException | Error e) {
+                error = new IOException(e);
+            } catch (InterruptedException e) {
+                // 処理スレッドが終了した
+                return;
+            }
+
+            try {
+                queue.put(END_OF_STREAM);
+            } catch (InterruptedException e) {
+                // 処理スレッドが終了した
+                return;
+            }
+        }
+
+        /**
+         * 読み込みバッファが空であれば、入力ストリームから読み込む。
+         *
+         * @return 入力の終端に達していれば false
+         * @throws IOException 読み込み失敗時
+         */
+        private boolean fill() throws IOException {
+            if (position < limit) {
+                return true;
+            }
+            int n = in.read(buffer);
+            while (n == 0) {
+                n = in.read(buffer);
+            }
+            if (n < 0) {
+                return false;
+            }
+            position = 0;
+            limit = n;
+            return true;
+        }
+
+        /**
+         * フレームを一つ読み込む。
+         *
+         * キューに溜めているバイト数が上限を超える場合は、
+         * 処理スレッドが枠を空けるまで待つ。
+         *
+         * @return フレームのバイト列(入力の終端に達した場合は null)
+         * @throws IOException 読み込み失敗時、フレームが途中で終わっている場合、
+         *                     MAX_FRAME_SIZE を超えるフレームの場合
+         * @throws InterruptedException 待機中に処理スレッドが終了した場合
+         */
+        private byte[] readFrame() throws IOException, InterruptedException {
+            switch (framing) {
+            case LENGTH:
+                if (!fill()) {
+                    return null;
+                }
+                byte[] header = new byte[4];
+                readFully(header);
+                int length = ((header[0] & 0xff) << 24)
+                        | ((header[1] & 0xff) << 16)
+                        | ((header[2] & 0xff) << 8)
+                        | (header[3] & 0xff);
+                if (length < 0 || length > MAX_FRAME_SIZE) {
+                    throw new IOException("invalid frame length: "
+                            + Integer.toUnsignedString(length)
+                            + " (max " + MAX_FRAME_SIZE + ")");
+                }
+                // 領域を確保する前に枠を確保する
+                queuedBytes.acquire(length);
+                byte[] frame = new byte[length];
+                readFully(frame);
+                return frame;
+            case NUL:
+            default:
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                while (fill()) {
+                    for (int i = position; i < limit; i++) {
+                        if (buffer[i] == 0) {
+                            appendFrameBytes(baos, i - position);
+                            position = i + 1;
+                            return acquire(baos.toByteArray());
+                        }
+                    }
+                    appendFrameBytes(baos, limit - position);
+                    position = limit;
+                }
+                // 終端の NUL がない最後のドキュメントも一つのフレームとして扱う
+                if (baos.size() == 0) {
+                    return null;
+                }
+                return acquire(baos.toByteArray());
+            }
+        }
+
+        /**
+         * 読み込みバッファの未処理データをフレームに追加する。
+         *
+         * @param baos 読み込み中のフレーム
+         * @param length 追加するバイト数
+         * @throws IOException MAX_FRAME_SIZE を超える場合
+         */
+        private void appendFrameBytes(final ByteArrayOutputStream baos,
+                final int length) throws IOException {
+            if (baos.size() + length > MAX_FRAME_SIZE) {
+                throw new IOException("frame too large (max "
+                        + MAX_FRAME_SIZE + ")");
+            }
+            baos.write(buffer, position, length);
+        }
+
+        /**
+         * フレームのバイト数分の枠を確保する。
+         *
+         * @param frame フレームのバイト列
+         * @return frame
+         * @throws InterruptedException 待機中に処理スレッドが終了した場合
+         */
+        private byte[] acquire(final byte[] frame)
+                throws InterruptedException {
+            queuedBytes.acquire(frame.length);
+            return frame;
+        }
+
+        /**
+         * 指定された配列が埋まるまで読み込む。
+         *
+         * @param b 読み込み先
+         * @throws IOException 読み込み失敗時
+         * @throws EOFException 途中で入力の終端に達した場合
+         */
+        private void readFully(final byte[] b) throws IOException {
+            int off = 0;
+            while (off < b.length) {
+                if (!fill()) {
+                    throw new EOFException("incomplete frame");
+                }
+                int n = Math.min(b.length - off, limit - position);
+                System.arraycopy(buffer, position, b, off, n);
+                position += n;
+                off += n;
+            }
+        }
+    }
+}
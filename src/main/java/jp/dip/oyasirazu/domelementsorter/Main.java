@@ -1,16 +1,22 @@
 package jp.dip.oyasirazu.domelementsorter;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.TransformerException;
@@ -30,6 +36,21 @@ import org.xml.sax.SAXException;
  */
 public final class Main {
 
+    /**
+     * 進捗を表示する入力ファイルサイズの閾値(バイト)。
+     */
+    private static final long PROGRESS_THRESHOLD_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * 進捗の表示間隔(秒)。
+     */
+    private static final long PROGRESS_INTERVAL_SECONDS = 5;
+
+    /**
+     * パイプラインモードの出力バッファサイズ。
+     */
+    private static final int PIPE_BUFFER_SIZE = 1024 * 1024;
+
     /**
      * private constructor.
      */
@@ -70,30 +91,85 @@ public final class Main {
             System.exit(0);
         }
 
+        // パーサープロファイル
+        // 指定がなければ、パイプラインモードでは外部 DTD を読み込まない TUNED、
+        // それ以外では並列ソートを利用できるよう展開済み DOM を作成する EXPANDED
+        DOMElementSorter.ParserProfile profile = options.getPipe() != null
+                ? DOMElementSorter.ParserProfile.TUNED
+                : DOMElementSorter.ParserProfile.EXPANDED;
+        if (options.getParserProfile() != null) {
+            try {
+                profile = DOMElementSorter.ParserProfile.of(
+                        options.getParserProfile());
+            } catch (IllegalArgumentException e) {
+                printUsage(optionParser);
+                System.exit(1);
+                return;
+            }
+        }
+
+        // パイプラインモード判定
+        if (options.getPipe() != null) {
+            FramedStreamSorter.Framing framing;
+            try {
+                framing = FramedStreamSorter.Framing.of(options.getPipe());
+            } catch (IllegalArgumentException e) {
+                printUsage(optionParser);
+                System.exit(1);
+                return;
+            }
+            runPipeline(framing, options.getUseValues(),
+                    options.getExcludeXPath(), profile);
+            return;
+        }
+
         String outputFilePathStr = options.getOutputFilePath();
         if (outputFilePathStr == null) {
             printUsage(optionParser);
             System.exit(0);
         }
 
-        // TODO: BufferedWriter の作り方どうにかならないものか...
-        try (BufferedWriter bw = Files.newBufferedWriter(
-                    Paths.get(outputFilePathStr),
-                    StandardCharsets.UTF_8,
-                    new StandardOpenOption[]{
-                        StandardOpenOption.CREATE,
-                        StandardOpenOption.TRUNCATE_EXISTING,
-                        StandardOpenOption.WRITE})) {
-            Document document = DOMElementSorter.Util.createDocument(
-                    options.getTargetFilePath().get(0));
+        // 進捗・タイムアウト管理
+        DOMElementSorter.SortProgress progress =
+                new DOMElementSorter.SortProgress(
+                        TimeUnit.SECONDS.toMillis(options.getTimeout()));
+
+        String targetFilePathStr = options.getTargetFilePath().get(0);
+        ScheduledExecutorService progressReporter =
+                startProgressReporter(targetFilePathStr, progress);
+
+        // タイムアウトの対象はパースとソートのみ。
+        // 書き出しを途中で中断すると出力ファイルが壊れるため、
+        // 書き出しを始める前に最後の確認を行い、書き出し中は中断しない。
+        Document document;
+        try {
+            document = DOMElementSorter.Util.createDocument(
+                    targetFilePathStr,
+                    profile,
+                    progress);
 
             String excludeXPath = options.getExcludeXPath();
 
-            sortChildNode(document, options.getUseValues(), excludeXPath);
-            String documentString =
-                    DOMElementSorter.Util.documentToString(document);
+            sortChildNode(document, options.getUseValues(), excludeXPath,
+                    progress);
+            progress.checkCancelled();
+        } catch (DOMElementSorter.SortCancelledException e) {
+            // タイムアウトした場合は出力ファイルに触れずに終了する
+            System.err.println("timeout: " + e.getMessage());
+            System.exit(1);
+            return;
+        } finally {
+            if (progressReporter != null) {
+                progressReporter.shutdownNow();
+            }
+        }
 
-            bw.write(documentString);
+        // 出力ファイルの拡張子が圧縮形式を表す場合は圧縮して出力する
+        try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(
+                    DOMElementSorter.Util.openOutputStream(
+                        Paths.get(outputFilePathStr)),
+                    StandardCharsets.UTF_8))) {
+            DOMElementSorter.Util.writeDocument(document, bw);
         }
     }
 
@@ -104,19 +180,99 @@ public final class Main {
      * @param useValues ソートに使用するノードを表す XPath 式のリスト
      *                  index が小さければ小さいほどソートの優先順位が高い。
      * @param excludeXPath 出力対象外ノードを表す XPath 式
+     * @param progress 進捗報告・中断用オブジェクト
      * @throws XPathExpressionException XPath 処理失敗時
      */
     private static void sortChildNode(
             final Document document,
             final List<String> useValues,
-            final String excludeXPath) throws XPathExpressionException {
-        DOMElementSorter.sort(document, useValues, excludeXPath);
+            final String excludeXPath,
+            final DOMElementSorter.SortProgress progress)
+            throws XPathExpressionException {
+        DOMElementSorter.sort(document, useValues, excludeXPath, progress);
+    }
+
+    /**
+     * 標準入力からフレーム区切りの XML を読み込み、
+     * ソート結果を同じフレーム形式で標準出力へ書き出す。
+     *
+     * 終了時に処理したドキュメント数と秒間処理数を標準エラー出力へ表示する。
+     *
+     * @param framing フレームの区切り方
+     * @param useValues ソートに使用するノードを表す XPath 式のリスト
+     * @param excludeXPath 出力対象外ノードを表す XPath 式
+     * @param profile パーサープロファイル
+     * @throws XPathExpressionException XPath 処理失敗時
+     * @throws IOException 入出力例外の発生時
+     * @throws TransformerException Transformer の作成失敗時
+     */
+    private static void runPipeline(
+            final FramedStreamSorter.Framing framing,
+            final List<String> useValues,
+            final String excludeXPath,
+            final DOMElementSorter.ParserProfile profile)
+            throws XPathExpressionException, IOException,
+                TransformerException {
+
+        FramedStreamSorter sorter = new FramedStreamSorter(
+                framing, useValues, excludeXPath, profile);
+
+        long start = System.nanoTime();
+        try {
+            // System.out(PrintStream)は IOException を握りつぶすため、
+            // 下流のプロセスが終了しても気付けるよう標準出力へ直接書き出す
+            sorter.run(System.in, new BufferedOutputStream(
+                    new FileOutputStream(FileDescriptor.out),
+                    PIPE_BUFFER_SIZE));
+        } finally {
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.err.println(String.format(
+                    "%d documents (%d errors) in %.3f s, %.1f documents/s",
+                    sorter.getDocumentCount(), sorter.getErrorCount(),
+                    seconds, sorter.getDocumentCount() / seconds));
+        }
+    }
+
+    /**
+     * 入力ファイルが大きい場合、標準エラー出力へ定期的に進捗を表示する。
+     *
+     * @param targetFilePathStr 入力ファイルパス
+     * @param progress 進捗報告・中断用オブジェクト
+     * @return 進捗表示用スレッド(進捗を表示しない場合は null)
+     * @throws IOException ファイルサイズ取得失敗時
+     */
+    private static ScheduledExecutorService startProgressReporter(
+            final String targetFilePathStr,
+            final DOMElementSorter.SortProgress progress) throws IOException {
+
+        final long fileSize = Files.size(Paths.get(targetFilePathStr));
+        if (fileSize < PROGRESS_THRESHOLD_BYTES) {
+            return null;
+        }
+
+        ScheduledExecutorService reporter =
+                Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "progress-reporter");
+                    t.setDaemon(true);
+                    return t;
+                });
+        reporter.scheduleAtFixedRate(() -> {
+            System.err.println(String.format(
+                    "progress: %d/%d bytes parsed, %d nodes visited,"
+                    + " %d sibling lists sorted",
+                    progress.getParsedBytes(), fileSize,
+                    progress.getNodesVisited(),
+                    progress.getSiblingListsCompleted()));
+        }, PROGRESS_INTERVAL_SECONDS, PROGRESS_INTERVAL_SECONDS,
+                TimeUnit.SECONDS);
+        return reporter;
     }
 
     private static void printUsage(CmdLineParser cmdLineParser) {
         // Useage を表示
         System.out.println("Useage:\n"
                 + "  Main [options] INPUT_XML\n"
+                + "  Main [options] --pipe FRAMING < INPUT > OUTPUT\n"
                 + "\n"
                 + "Options:");
         cmdLineParser.printUsage(System.out);
@@ -173,6 +329,26 @@ public final class Main {
         @Option(name = "--license", usage = "print license.")
         private boolean license;
 
+        /**
+         * タイムアウト(秒)。0 以下の場合はタイムアウトしない。
+         */
+        @Option(name = "--timeout", metaVar = "SECONDS", usage = "abort parsing and sorting after SECONDS seconds.")
+        private int timeout;
+
+        /**
+         * パイプラインモードのフレーム区切り(nul, length)。
+         *
+         * 指定した場合、標準入力から読み込み、標準出力へ書き出す。
+         */
+        @Option(name = "--pipe", metaVar = "FRAMING", usage = "read framed documents from stdin and write them to stdout. FRAMING: nul or length.")
+        private String pipe;
+
+        /**
+         * パーサープロファイル名(default, expanded, tuned)。
+         */
+        @Option(name = "--parser", metaVar = "PROFILE", usage = "parser profile. PROFILE: expanded (default), default or tuned (skips external DTDs, default with --pipe).")
+        private String parserProfile;
+
         /**
          * ソート対象のファイルパス。
          */
@@ -0,0 +1,86 @@
+package jp.dip.oyasirazu.domelementsorter;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.xpath.XPathExpressionException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * LargeSiblingListBenchmark
+ *
+ * 子ノード数を 4 倍ずつ増やしながら LargeSiblingListSorter でソートし、
+ * --useValue の式ごとにノードあたりの所要時間を表示する。
+ * 所要時間が子ノード数にほぼ比例する(ノードあたりの時間が増えない)ことを確認する。
+ *
+ * <pre>
+ * java -cp build/classes/java/main:build/classes/java/test \
+ *     jp.dip.oyasirazu.domelementsorter.LargeSiblingListBenchmark [MAX_CHILDREN]
+ * </pre>
+ */
+public final class LargeSiblingListBenchmark {
+
+    private static final int DEFAULT_MAX_CHILDREN = 640000;
+
+    private static final int MIN_CHILDREN = 2500;
+
+    private static final int REPEAT = 3;
+
+    private static final String[] USE_VALUES = {"@id", "text()", "."};
+
+    private LargeSiblingListBenchmark() { }
+
+    public static void main(String[] args) throws SAXException, ParserConfigurationException, IOException, XPathExpressionException {
+        int maxChildren = DEFAULT_MAX_CHILDREN;
+        if (args.length > 0) {
+            maxChildren = Integer.parseInt(args[0]);
+        }
+
+        for (String useValue : USE_VALUES) {
+            DOMElementSorter.NodeComparatorXPath comparator =
+                    new DOMElementSorter.NodeComparatorXPath(Arrays.asList(useValue));
+            for (int children = MIN_CHILDREN; children <= maxChildren; children *= 4) {
+                List<Node> nodes = createSiblings(children);
+
+                long best = Long.MAX_VALUE;
+                for (int i = 0; i < REPEAT; i++) {
+                    long start = System.nanoTime();
+                    DOMElementSorter.LargeSiblingListSorter.sort(nodes, comparator, true, null);
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+                System.out.printf("%-8s %8d children : %9.1f ms, %7.0f ns/child%n",
+                        useValue, children, best / 1e6, (double)best / children);
+            }
+        }
+    }
+
+    /**
+     * id 属性とテキストを持つ子要素を指定数だけ持つ XML をパースし、その子ノードを返す。
+     */
+    static List<Node> createSiblings(int children) throws SAXException, ParserConfigurationException, IOException {
+        StringBuilder sb = new StringBuilder("<xml>\n");
+        for (int i = 0; i < children; i++) {
+            sb.append("    <e id=\"").append((i * 7919L) % children).append("\">v")
+                .append(i % 97).append("</e>\n");
+        }
+        sb.append("</xml>");
+        Document document = DOMElementSorter.ParserProfile.EXPANDED.parse(
+                new ByteArrayInputStream(sb.toString().getBytes(StandardCharsets.UTF_8)));
+
+        NodeList childNodes = document.getDocumentElement().getChildNodes();
+        List<Node> nodes = new ArrayList<>(childNodes.getLength());
+        for (int i = 0; i < childNodes.getLength(); i++) {
+            nodes.add(childNodes.item(i));
+        }
+        return nodes;
+    }
+}
@@ -0,0 +1,86 @@
+package jp.dip.oyasirazu.domelementsorter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.xml.sax.SAXException;
+
+/**
+ * ParserProfileBenchmark
+ *
+ * テスト用 XML ファイルを繰り返しパースし、
+ * 毎回 DocumentBuilder を作成する従来の方法と
+ * ParserProfile を利用する方法の所要時間を比較する。
+ *
+ * <pre>
+ * java -cp build/classes/java/main:build/classes/java/test \
+ *     jp.dip.oyasirazu.domelementsorter.ParserProfileBenchmark [ITERATIONS]
+ * </pre>
+ */
+public final class ParserProfileBenchmark {
+
+    private static final String FIXTURE_DIR = "src/test/resource";
+
+    private static final int DEFAULT_ITERATIONS = 20000;
+
+    private ParserProfileBenchmark() { }
+
+    public static void main(String[] args) throws SAXException, ParserConfigurationException, IOException {
+        int iterations = DEFAULT_ITERATIONS;
+        if (args.length > 0) {
+            iterations = Integer.parseInt(args[0]);
+        }
+
+        List<File> fixtures = new ArrayList<>();
+        for (File file : new File(FIXTURE_DIR).listFiles()) {
+            if (file.isFile() && file.getName().endsWith(".xml")) {
+                fixtures.add(file);
+            }
+        }
+
+        // ウォームアップ
+        runCurrent(fixtures, iterations / 10);
+        runProfile(fixtures, iterations / 10, DOMElementSorter.ParserProfile.DEFAULT);
+        runProfile(fixtures, iterations / 10, DOMElementSorter.ParserProfile.TUNED);
+
+        report("current", runCurrent(fixtures, iterations), iterations, fixtures.size());
+        report("profile(DEFAULT)", runProfile(fixtures, iterations, DOMElementSorter.ParserProfile.DEFAULT), iterations, fixtures.size());
+        report("profile(TUNED)", runProfile(fixtures, iterations, DOMElementSorter.ParserProfile.TUNED), iterations, fixtures.size());
+    }
+
+    /**
+     * 従来通り、毎回 DocumentBuilderFactory と DocumentBuilder を作成してパースする。
+     */
+    private static long runCurrent(List<File> fixtures, int iterations) throws SAXException, ParserConfigurationException, IOException {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            for (File file : fixtures) {
+                DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+                DocumentBuilder builder = factory.newDocumentBuilder();
+                builder.parse(file);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long runProfile(List<File> fixtures, int iterations, DOMElementSorter.ParserProfile profile) throws SAXException, ParserConfigurationException, IOException {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            for (File file : fixtures) {
+                profile.parse(file);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void report(String name, long elapsedNanos, int iterations, int fixtureCount) {
+        double perDocumentMicros = elapsedNanos / 1000.0 / ((long)iterations * fixtureCount);
+        System.out.printf("%-18s : %8.2f us/document%n", name, perDocumentMicros);
+    }
+}
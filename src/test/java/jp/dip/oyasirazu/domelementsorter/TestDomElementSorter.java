@@ -1,15 +1,38 @@
 package jp.dip.oyasirazu.domelementsorter;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
 import javax.xml.xpath.XPathException;
 
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
 import org.junit.Test;
@@ -204,4 +227,360 @@ public class TestDomElementSorter {
 
         assertThat(result, is(NO_RECURSIVE_OUTPUT));
     }
+
+    /**
+     * 調整済みプロファイルでも同じソート結果になり、
+     * プールされた DocumentBuilder を繰り返し利用できることを確認。
+     */
+    @Test
+    public void testSortWithTunedParserProfile() throws XPathException, SAXException, ParserConfigurationException, TransformerException, IOException {
+        for (int i = 0; i < 2; i++) {
+            Document document = DOMElementSorter.Util.createDocument(
+                    SORT_USE_XPATH_PATH,
+                    DOMElementSorter.ParserProfile.TUNED);
+            List<String> useValues = new ArrayList<String>();
+            useValues.add(".");
+            useValues.add("@id");
+            DOMElementSorter.sort(document, useValues, null);
+            String result = DOMElementSorter.Util.documentToString(document);
+
+            assertThat(result, is(SORT_USE_XPATH_OUTPUT));
+        }
+    }
+
+    /**
+     * 並列ソートの結果が Collections.sort の結果と一致することを確認。
+     */
+    @Test
+    public void testLargeSiblingListSorterMatchesComparator() throws XPathException, SAXException, ParserConfigurationException, IOException {
+        Document document = DOMElementSorter.Util.createDocument(
+                SORT_USE_XPATH_PATH,
+                DOMElementSorter.ParserProfile.TUNED);
+        NodeList parents = document.getDocumentElement().getChildNodes();
+        List<Comparator<Node>> comparators = new ArrayList<>();
+        comparators.add(DOMElementSorter.NODE_COMPARATOR_DEFAULT);
+        comparators.add(new DOMElementSorter.NodeComparatorXPath(Arrays.asList(".", "@id")));
+        comparators.add(new DOMElementSorter.NodeComparatorXPath(Arrays.asList("text()")));
+
+        for (Comparator<Node> comparator : comparators) {
+            for (int i = 0; i < parents.getLength(); i++) {
+                NodeList children = parents.item(i).getChildNodes();
+                List<Node> expected = new ArrayList<>();
+                for (int j = 0; j < children.getLength(); j++) {
+                    expected.add(children.item(j));
+                }
+                List<Node> nodes = new ArrayList<>(expected);
+                Collections.sort(expected, comparator);
+
+                assertThat(DOMElementSorter.LargeSiblingListSorter.sort(nodes, comparator, true, null), is(expected));
+                assertThat(DOMElementSorter.LargeSiblingListSorter.sort(nodes, comparator, false, null), is(expected));
+            }
+        }
+    }
+
+    /**
+     * 閾値以上の兄弟ノードが、同名ノードの文書順を保ったままソートされることを確認。
+     */
+    @Test
+    public void testSortLargeSiblingList() throws SAXException, ParserConfigurationException, IOException {
+        Document document = DOMElementSorter.ParserProfile.TUNED.getDocumentBuilder().newDocument();
+        Element root = document.createElement("xml");
+        document.appendChild(root);
+        int size = DOMElementSorter.PARALLEL_SORT_THRESHOLD * 2;
+        for (int i = size - 1; i >= 0; i--) {
+            Element child = document.createElement("e" + (i % 10));
+            child.setAttribute("id", Integer.toString(i));
+            root.appendChild(child);
+        }
+
+        DOMElementSorter.sort(document);
+
+        NodeList children = root.getChildNodes();
+        assertThat(children.getLength(), is(size));
+        for (int i = 1; i < size; i++) {
+            Element prev = (Element)children.item(i - 1);
+            Element curr = (Element)children.item(i);
+            int order = prev.getTagName().compareTo(curr.getTagName());
+            assertThat(order, lessThanOrEqualTo(0));
+            if (order == 0) {
+                assertThat(Integer.parseInt(prev.getAttribute("id")),
+                        greaterThan(Integer.parseInt(curr.getAttribute("id"))));
+            }
+        }
+    }
+
+    /**
+     * 進捗が集計され、中断要求でソートが中断されることを確認。
+     */
+    @Test
+    public void testSortProgressAndCancel() throws XPathException, SAXException, ParserConfigurationException, TransformerException, IOException {
+        DOMElementSorter.SortProgress progress = new DOMElementSorter.SortProgress();
+        Document document = DOMElementSorter.Util.createDocument(
+                SORT_USE_XPATH_PATH,
+                DOMElementSorter.ParserProfile.DEFAULT,
+                progress);
+        List<String> useValues = new ArrayList<String>();
+        useValues.add(".");
+        useValues.add("@id");
+        DOMElementSorter.sort(document, useValues, null, progress);
+        String result = DOMElementSorter.Util.documentToString(document);
+
+        assertThat(result, is(SORT_USE_XPATH_OUTPUT));
+        assertThat(progress.getParsedBytes(), greaterThan(0L));
+        assertThat(progress.getNodesVisited(), greaterThan(0L));
+        assertThat(progress.getSiblingListsCompleted(), greaterThan(0L));
+
+        progress.cancel();
+        try {
+            DOMElementSorter.sort(document, useValues, null, progress);
+            fail("中断されませんでした");
+        } catch (DOMElementSorter.SortCancelledException e) {
+            assertThat(progress.isCancelled(), is(true));
+        }
+
+        // 中断後は書き出しも中断される
+        try {
+            DOMElementSorter.Util.writeDocument(document, new StringWriter(),
+                    DOMElementSorter.Util.newDocumentTransformer(), progress);
+            fail("中断されませんでした");
+        } catch (DOMElementSorter.SortCancelledException e) {
+            assertThat(progress.isCancelled(), is(true));
+        }
+
+        // 子ノードが 2 つ以上ある兄弟リストだけを数える
+        DOMElementSorter.SortProgress counter = new DOMElementSorter.SortProgress();
+        Document small = DOMElementSorter.ParserProfile.DEFAULT.parse(
+                new InputSource(new StringReader("<a><b><c/><c/></b><d/></a>")));
+        DOMElementSorter.sort(small, null, null, counter);
+        assertThat(counter.getSiblingListsCompleted(), is(2L));
+    }
+
+    /**
+     * 単純な XPath 式のソートキー抽出時間が子ノード数にほぼ比例することを確認。
+     *
+     * XPath を評価すると子ノードの位置に比例した時間がかかるため、
+     * 子ノード数を 4 倍にすると所要時間は 16 倍程度になる。
+     */
+    @Test
+    public void testLargeSiblingListSorterScalesLinearly() throws XPathException, SAXException, ParserConfigurationException, IOException {
+        Comparator<Node> comparator = new DOMElementSorter.NodeComparatorXPath(Arrays.asList("@id", "text()"));
+        List<Node> small = createSiblings(20000);
+        List<Node> large = createSiblings(80000);
+
+        // 期待値: Element を id 属性の文字列順(同値は文書順)、その後にテキストノードを文書順
+        List<Node> expected = new ArrayList<>(large);
+        Collections.sort(expected, new Comparator<Node>() {
+            @Override
+            public int compare(Node n1, Node n2) {
+                if (n1.getNodeType() != n2.getNodeType()) {
+                    return n1.getNodeType() - n2.getNodeType();
+                }
+                if (n1.getNodeType() != Node.ELEMENT_NODE) {
+                    return 0;
+                }
+                return ((Element)n1).getAttribute("id").compareTo(((Element)n2).getAttribute("id"));
+            }
+        });
+        assertThat(DOMElementSorter.LargeSiblingListSorter.sort(large, comparator, true, null), is(expected));
+
+        long smallNanos = Long.MAX_VALUE;
+        long largeNanos = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            long start = System.nanoTime();
+            DOMElementSorter.LargeSiblingListSorter.sort(small, comparator, true, null);
+            smallNanos = Math.min(smallNanos, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            DOMElementSorter.LargeSiblingListSorter.sort(large, comparator, true, null);
+            largeNanos = Math.min(largeNanos, System.nanoTime() - start);
+        }
+        assertThat(largeNanos, lessThan(smallNanos * 10));
+    }
+
+    private static List<Node> createSiblings(int children) throws SAXException, ParserConfigurationException, IOException {
+        StringBuilder sb = new StringBuilder("<xml>\n");
+        for (int i = 0; i < children; i++) {
+            sb.append("    <e id=\"").append((i * 7919L) % children).append("\">v").append(i % 97).append("</e>\n");
+        }
+        sb.append("</xml>");
+        Document document = DOMElementSorter.ParserProfile.EXPANDED.parse(
+                new ByteArrayInputStream(sb.toString().getBytes(StandardCharsets.UTF_8)));
+
+        NodeList childNodes = document.getDocumentElement().getChildNodes();
+        List<Node> nodes = new ArrayList<>();
+        for (int i = 0; i < childNodes.getLength(); i++) {
+            nodes.add(childNodes.item(i));
+        }
+        return nodes;
+    }
+
+    /**
+     * 圧縮されたファイルを展開しながら読み込めることを確認。
+     */
+    @Test
+    public void testSortCompressedXml() throws SAXException, ParserConfigurationException, TransformerException, IOException {
+        byte[] xml = Files.readAllBytes(Paths.get(TAG_NAME_PATH));
+        for (String suffix : new String[]{".xml.gz", ".xml.zip", ".xml.zz"}) {
+            Path compressed = Files.createTempFile("TagName", suffix);
+            try {
+                try (OutputStream os = DOMElementSorter.Util.openOutputStream(compressed)) {
+                    os.write(xml);
+                }
+
+                // 拡張子ではなくマジックバイトで判定されることも確認する
+                Path renamed = Files.move(compressed, compressed.resolveSibling(compressed.getFileName() + ".bin"));
+                compressed = renamed;
+
+                Document document = DOMElementSorter.Util.createDocument(compressed.toString());
+                DOMElementSorter.sort(document);
+                String result = DOMElementSorter.Util.documentToString(document);
+
+                assertThat(result, is(TAG_NAME_OUTPUT));
+            } finally {
+                Files.deleteIfExists(compressed);
+            }
+        }
+
+        // 圧縮されていなければ、拡張子が圧縮形式を表していてもそのまま読み込む
+        for (String suffix : new String[]{".xml.gz", ".xml.zip", ".xml.zz"}) {
+            Path plain = Files.createTempFile("TagName", suffix);
+            try {
+                Files.write(plain, xml);
+
+                Document document = DOMElementSorter.Util.createDocument(plain.toString());
+                DOMElementSorter.sort(document);
+                String result = DOMElementSorter.Util.documentToString(document);
+
+                assertThat(result, is(TAG_NAME_OUTPUT));
+            } finally {
+                Files.deleteIfExists(plain);
+            }
+        }
+    }
+
+    /**
+     * 各処理フェーズの JFR イベントが記録されることを確認。
+     */
+    @Test
+    public void testSortPhaseEvents() throws XPathException, SAXException, ParserConfigurationException, TransformerException, IOException {
+        Path recordingPath = Files.createTempFile("TestDomElementSorter", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(DOMElementSorter.SortPhaseEvent.class);
+            recording.start();
+
+            Document document = DOMElementSorter.Util.createDocument(SORT_AND_EXCLUDE_USE_XPATH_PATH);
+            DOMElementSorter.sort(document, Arrays.asList(new String[]{"./@id"}), "/xml/notarget");
+            DOMElementSorter.Util.documentToString(document);
+
+            recording.stop();
+            recording.dump(recordingPath);
+
+            List<String> phases = new ArrayList<>();
+            for (RecordedEvent event : RecordingFile.readAllEvents(recordingPath)) {
+                phases.add(event.getString("phase"));
+            }
+            assertThat(phases, containsInAnyOrder("parse", "removeNodes", "sort", "serialize"));
+        } finally {
+            Files.deleteIfExists(recordingPath);
+        }
+    }
+
+    /**
+     * 兄弟ノードが多い場合の JFR イベントに、ソートに使用した値が記録されることを確認。
+     */
+    @Test
+    public void testSiblingListSortEvent() throws XPathException, SAXException, ParserConfigurationException, IOException {
+        StringBuilder xml = new StringBuilder("<xml>");
+        for (int i = 0; i < DOMElementSorter.SiblingListSortEvent.THRESHOLD; i++) {
+            xml.append("<e id=\"").append(i % 7).append("\"/>");
+        }
+        xml.append("</xml>");
+
+        Path recordingPath = Files.createTempFile("TestDomElementSorter", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(DOMElementSorter.SiblingListSortEvent.class);
+            recording.start();
+
+            Document document = DOMElementSorter.ParserProfile.DEFAULT.parse(
+                    new InputSource(new StringReader(xml.toString())));
+            DOMElementSorter.sort(document, Arrays.asList(new String[]{"./@id", "name()"}), null);
+
+            recording.stop();
+            recording.dump(recordingPath);
+
+            List<RecordedEvent> events = new ArrayList<>();
+            for (RecordedEvent event : RecordingFile.readAllEvents(recordingPath)) {
+                if (event.getEventType().getName().equals("jp.dip.oyasirazu.domelementsorter.SiblingListSort")) {
+                    events.add(event);
+                }
+            }
+            assertThat(events.size(), is(1));
+            assertThat(events.get(0).getString("parentPath"), is("/xml"));
+            assertThat(events.get(0).getInt("childCount"), is(DOMElementSorter.SiblingListSortEvent.THRESHOLD));
+            assertThat(events.get(0).getString("sortValues"), is("./@id, name()"));
+        } finally {
+            Files.deleteIfExists(recordingPath);
+        }
+    }
+
+    /**
+     * 空白文字だけの行の削除結果が、出力全体への正規表現置換と一致することを確認。
+     */
+    @Test
+    public void testWriteDocumentRemovesBlankLines() throws SAXException, ParserConfigurationException, TransformerException, IOException {
+        Document document = DOMElementSorter.ParserProfile.DEFAULT.getDocumentBuilder().newDocument();
+        Element root = document.createElement("xml");
+        document.appendChild(root);
+        Element child = document.createElement("c");
+        child.appendChild(document.createTextNode("a\r b\u0085c   \nd\u2028  \ne\n   \n f\r\n  \r\n"));
+        root.appendChild(child);
+        root.appendChild(document.createTextNode("\n    \n"));
+        root.appendChild(document.createComment("x\r\n  \ny\r\r\n \r   \n"));
+
+        StringWriter expected = new StringWriter();
+        Transformer transformer = TransformerFactory.newInstance().newTransformer(
+                new StreamSource(DOMElementSorter.class.getResourceAsStream("/style.xsl")));
+        transformer.transform(new DOMSource(document), new StreamResult(expected));
+
+        StringWriter result = new StringWriter();
+        DOMElementSorter.Util.writeDocument(document, result);
+
+        assertThat(result.toString(), is(expected.toString().replaceAll("\r\n", "\n").replaceAll("(?m)^\\s*\n", "")));
+    }
+
+    /**
+     * 展開済み DOM で、複数チャンクに分けて並列に抽出したソートキーによる結果が、
+     * 逐次抽出した結果と一致することを確認。
+     */
+    @Test
+    public void testLargeSiblingListSorterParallelExtract() throws XPathException, SAXException, ParserConfigurationException, IOException {
+        int size = DOMElementSorter.PARALLEL_SORT_THRESHOLD;
+        StringBuilder sb = new StringBuilder("<xml>");
+        for (int i = 0; i < size; i++) {
+            sb.append("<e").append((i * 7919) % 10).append("/>");
+        }
+        sb.append("</xml>");
+        Document document = DOMElementSorter.ParserProfile.TUNED.parse(
+                new ByteArrayInputStream(sb.toString().getBytes(StandardCharsets.UTF_8)));
+        assertThat(DOMElementSorter.ParserProfile.isExpanded(document), is(true));
+
+        NodeList children = document.getDocumentElement().getChildNodes();
+        List<Node> nodes = new ArrayList<>();
+        for (int i = 0; i < children.getLength(); i++) {
+            nodes.add(children.item(i));
+        }
+
+        List<Node> expected = new ArrayList<>(nodes);
+        Collections.sort(expected, DOMElementSorter.NODE_COMPARATOR_DEFAULT);
+        assertThat(DOMElementSorter.LargeSiblingListSorter.sort(nodes, DOMElementSorter.NODE_COMPARATOR_DEFAULT, true, null), is(expected));
+        assertThat(DOMElementSorter.LargeSiblingListSorter.sort(nodes, DOMElementSorter.NODE_COMPARATOR_DEFAULT, false, null), is(expected));
+
+        // NodeComparatorXPath.compare は比較のたびに XPath 式を評価して遅いため、
+        // Collections.sort との比較は行わず、同じ順序になる NODE_COMPARATOR_DEFAULT の結果と比較する
+        Comparator<Node> xpathComparator = new DOMElementSorter.NodeComparatorXPath(Arrays.asList("."));
+        List<Node> parallel = DOMElementSorter.LargeSiblingListSorter.sort(nodes, xpathComparator, true, null);
+        List<Node> sequential = DOMElementSorter.LargeSiblingListSorter.sort(nodes, xpathComparator, false, null);
+        assertThat(parallel, is(sequential));
+        assertThat(parallel, is(expected));
+    }
 }
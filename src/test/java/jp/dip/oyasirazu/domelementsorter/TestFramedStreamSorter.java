@@ -0,0 +1,213 @@
+package jp.dip.oyasirazu.domelementsorter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.xpath.XPathException;
+
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.MatcherAssert.*;
+import static org.junit.Assert.fail;
+
+/**
+ * TestFramedStreamSorter
+ */
+public class TestFramedStreamSorter {
+
+    private static final String TAG_NAME_PATH =
+        "src/test/resource/TagName.xml";
+    private static final String SORT_AND_EXCLUDE_USE_XPATH_PATH =
+        "src/test/resource/SortAndExcludeUseXPath.xml";
+
+    @Test
+    public void testNulFraming() throws XPathException, SAXException, ParserConfigurationException, TransformerException, IOException {
+        byte[] doc1 = Files.readAllBytes(Paths.get(TAG_NAME_PATH));
+        byte[] doc2 = Files.readAllBytes(Paths.get(SORT_AND_EXCLUDE_USE_XPATH_PATH));
+
+        // 最後のドキュメントは NUL で終わっていなくてもよい
+        ByteArrayOutputStream input = new ByteArrayOutputStream();
+        input.write(doc1);
+        input.write(0);
+        input.write(doc2);
+
+        FramedStreamSorter sorter = new FramedStreamSorter(
+                FramedStreamSorter.Framing.NUL, Arrays.asList("./@id"), "/xml/notarget");
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        sorter.run(new ByteArrayInputStream(input.toByteArray()), output);
+
+        String expected = expected(TAG_NAME_PATH) + "\0" + expected(SORT_AND_EXCLUDE_USE_XPATH_PATH) + "\0";
+        assertThat(new String(output.toByteArray(), StandardCharsets.UTF_8), is(expected));
+        assertThat(sorter.getDocumentCount(), is(2L));
+        assertThat(sorter.getErrorCount(), is(0L));
+    }
+
+    @Test
+    public void testLengthFraming() throws XPathException, SAXException, ParserConfigurationException, TransformerException, IOException {
+        byte[] doc1 = Files.readAllBytes(Paths.get(TAG_NAME_PATH));
+        byte[] broken = "<xml>".getBytes(StandardCharsets.UTF_8);
+
+        ByteArrayOutputStream input = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(input);
+        dos.writeInt(doc1.length);
+        dos.write(doc1);
+        dos.writeInt(broken.length);
+        dos.write(broken);
+
+        FramedStreamSorter sorter = new FramedStreamSorter(
+                FramedStreamSorter.Framing.LENGTH, Arrays.asList("./@id"), "/xml/notarget");
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        sorter.run(new ByteArrayInputStream(input.toByteArray()), output);
+
+        // 処理に失敗したドキュメントは空のフレームになる
+        byte[] sorted = expected(TAG_NAME_PATH).getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        DataOutputStream expectedDos = new DataOutputStream(expected);
+        expectedDos.writeInt(sorted.length);
+        expectedDos.write(sorted);
+        expectedDos.writeInt(0);
+
+        assertThat(output.toByteArray(), is(expected.toByteArray()));
+        assertThat(sorter.getDocumentCount(), is(2L));
+        assertThat(sorter.getErrorCount(), is(1L));
+    }
+
+    @Test
+    public void testUnresolvableDtd() throws XPathException, SAXException, ParserConfigurationException, TransformerException, IOException {
+        byte[] doc1 = Files.readAllBytes(Paths.get(TAG_NAME_PATH));
+        byte[] doc2 = "<!DOCTYPE xml SYSTEM \"missing-TestFramedStreamSorter.dtd\"><xml><b/><a/></xml>".getBytes(StandardCharsets.UTF_8);
+        byte[] doc3 = Files.readAllBytes(Paths.get(SORT_AND_EXCLUDE_USE_XPATH_PATH));
+
+        ByteArrayOutputStream input = new ByteArrayOutputStream();
+        input.write(doc1);
+        input.write(0);
+        input.write(doc2);
+        input.write(0);
+        input.write(doc3);
+        input.write(0);
+
+        // 外部 DTD を読み込むプロファイルでは、そのドキュメントだけが空のフレームになる
+        FramedStreamSorter sorter = new FramedStreamSorter(
+                FramedStreamSorter.Framing.NUL, Arrays.asList("./@id"), "/xml/notarget",
+                DOMElementSorter.ParserProfile.DEFAULT);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        sorter.run(new ByteArrayInputStream(input.toByteArray()), output);
+
+        String expected = expected(TAG_NAME_PATH) + "\0" + "\0" + expected(SORT_AND_EXCLUDE_USE_XPATH_PATH) + "\0";
+        assertThat(new String(output.toByteArray(), StandardCharsets.UTF_8), is(expected));
+        assertThat(sorter.getDocumentCount(), is(3L));
+        assertThat(sorter.getErrorCount(), is(1L));
+
+        // デフォルトでは外部 DTD を読み込まないため、すべて処理できる
+        sorter = new FramedStreamSorter(
+                FramedStreamSorter.Framing.NUL, Arrays.asList("./@id"), "/xml/notarget");
+        output = new ByteArrayOutputStream();
+        sorter.run(new ByteArrayInputStream(input.toByteArray()), output);
+
+        assertThat(sorter.getDocumentCount(), is(3L));
+        assertThat(sorter.getErrorCount(), is(0L));
+    }
+
+    @Test
+    public void testFrameTooLarge() throws XPathException, SAXException, ParserConfigurationException, TransformerException, IOException {
+        byte[] doc1 = Files.readAllBytes(Paths.get(TAG_NAME_PATH));
+
+        ByteArrayOutputStream input = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(input);
+        dos.writeInt(doc1.length);
+        dos.write(doc1);
+        dos.writeInt(FramedStreamSorter.MAX_FRAME_SIZE + 1);
+
+        FramedStreamSorter sorter = new FramedStreamSorter(
+                FramedStreamSorter.Framing.LENGTH, Arrays.asList("./@id"), "/xml/notarget");
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            sorter.run(new ByteArrayInputStream(input.toByteArray()), output);
+            fail("上限を超えるフレームを読み込みました");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), containsString("invalid frame length"));
+        }
+
+        // 上限を超えるフレームより前のドキュメントは書き出される
+        byte[] sorted = expected(TAG_NAME_PATH).getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        DataOutputStream expectedDos = new DataOutputStream(expected);
+        expectedDos.writeInt(sorted.length);
+        expectedDos.write(sorted);
+
+        assertThat(output.toByteArray(), is(expected.toByteArray()));
+        assertThat(sorter.getDocumentCount(), is(1L));
+    }
+
+    @Test
+    public void testOutputFailureStopsReading() throws XPathException, SAXException, ParserConfigurationException, TransformerException, IOException {
+        byte[] doc = Files.readAllBytes(Paths.get(TAG_NAME_PATH));
+        int documents = 5000;
+
+        ByteArrayOutputStream input = new ByteArrayOutputStream();
+        for (int i = 0; i < documents; i++) {
+            input.write(doc);
+            input.write(0);
+        }
+        final byte[] inputBytes = input.toByteArray();
+
+        // 読み込まれたバイト数を数える入力ストリーム
+        final AtomicLong bytesRead = new AtomicLong();
+        InputStream in = new ByteArrayInputStream(inputBytes) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                int n = super.read(b, off, len);
+                if (n > 0) {
+                    bytesRead.addAndGet(n);
+                }
+                return n;
+            }
+        };
+
+        // 下流のプロセスが終了したように、一定量を書き込んだ後は失敗する出力ストリーム
+        OutputStream out = new OutputStream() {
+            private int written;
+
+            @Override
+            public void write(int b) throws IOException {
+                if (++written > 1000) {
+                    throw new IOException("Broken pipe");
+                }
+            }
+        };
+
+        FramedStreamSorter sorter = new FramedStreamSorter(
+                FramedStreamSorter.Framing.NUL, null, null);
+        try {
+            sorter.run(in, out);
+            fail("出力の失敗が報告されませんでした");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), is("Broken pipe"));
+        }
+
+        // 残りの入力は読み込まず、処理もしない
+        assertThat(sorter.getDocumentCount(), lessThan((long)documents));
+        assertThat(bytesRead.get(), lessThan((long)inputBytes.length));
+    }
+
+    private static String expected(String path) throws XPathException, SAXException, ParserConfigurationException, TransformerException, IOException {
+        Document document = DOMElementSorter.Util.createDocument(path);
+        DOMElementSorter.sort(document, Arrays.asList("./@id"), "/xml/notarget");
+        return DOMElementSorter.Util.documentToString(document);
+    }
+}